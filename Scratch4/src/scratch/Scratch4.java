@@ -1,891 +1,4165 @@
-/**
- * Original JavaScript Version: http://scratch-lang.notimetoplay.org/scratch-lang4.js
- */
-package scratch;
-
-import java.util.HashMap;
-import java.util.Stack;
-
-class ScratchLexer {
-    private String text;
-    private int position; // Beginning of TEXT.
-
-    public ScratchLexer(String text) {
-        this.text = text;
-        position = 0;
-    }
-
-    // Trying to avoid regular expressions here.
-    public boolean isWhitespace(char ch) {
-        return ch == ' '
-            || ch == '\t'
-            || ch == '\r'
-            || ch == '\n';
-    }
-
-    public String nextWord() {
-        if (position >= text.length()) {
-            return null;
-        }
-        while (isWhitespace(text.charAt(position))) {
-            position++;
-            if (position >= text.length()) {
-                return null;
-            }
-        }
-        int new_pos = position;
-        while (!isWhitespace(text.charAt(new_pos))) {
-            new_pos++;
-            if (new_pos >= text.length()) {
-                break;
-            }
-        }
-        String collector = text.substring(position, new_pos);
-        new_pos++;
-        position = new_pos; // Skip the delimiter.
-        return collector;
-    }
-
-    public String nextCharsUpTo(char ch) {
-        if (position >= text.length()) {
-            return null;
-        }
-        int new_pos = position;
-        while (text.charAt(new_pos) != ch) {
-            new_pos++;
-            if (new_pos >= text.length()) {
-                throw new RuntimeException("Unexpected end of input");
-            }
-        }
-        String collector = text.substring(position, new_pos);
-        new_pos++;
-        position = new_pos; // Skip the delimiter.
-        return collector;
-    }
-}
-
-public class Scratch4 {
-    private HashMap<String, Code> dictionary = new HashMap<>();
-    private Stack data_stack = new Stack();
-    private Stack compile_buffer = new Stack();
-    public Stack stack = data_stack;
-    private boolean immediate = false;
-    public ScratchLexer lexer;
-    public String latest;
-    public int code_pointer;
-    public boolean break_state;
-
-    public Scratch4() {
-        Object[] words = {
-            "PRINT", new CodePrint(),
-            ".", new CodePrint(),
-            "PSTACK", new CodePstack(),
-            ".S", new CodePstack(),
-            "+", new CodeAdd(),
-            "-", new CodeSub(),
-            "*", new CodeMul(),
-            "/", new CodeDiv(),
-            "%", new CodeMod(),
-            "SQRT", new CodeSqrt(),
-            "DUP", new CodeDup(),
-            "DROP", new CodeDrop(),
-            "SWAP", new CodeSwap(),
-            "OVER", new CodeOver(),
-            "ROT", new CodeRot(),
-            "CLEAR", new CodeClear(),
-            "VAR", new CodeVar(),
-            "STORE", new CodeStore(),
-            "!", new CodeStore(),
-            "FETCH", new CodeFetch(),
-            "@", new CodeFetch(),
-            "CONST", new CodeConst(),
-            "\"", new CodeString(),
-            "/*", new CodeCComment(),
-            "(", new CodeComment(),
-            "//", new CodeCCComment(),
-            "DEF", new CodeDef(),
-            ":", new CodeDef(),
-            "END", new CodeEnd(),
-            ";", new CodeEnd(),
-            "[", new CodeList(),
-            "LENGTH", new CodeLength(),
-            "ITEM", new CodeItem(),
-            "RUN", new CodeRun(),
-            "TIMES", new CodeTimes(),
-            "IFTRUE", new CodeIfTrue(),
-            "IFFALSE", new CodeIfFalse(),
-            "WHILE", new CodeWhile(),
-            "?CONTINUE", new CodeContinue(),
-            "?BREAK", new CodeBreak(),
-            "LOOP", new CodeLoop(),
-            "TRUE", new CodeTrue(),
-            "FALSE", new CodeFalse(),
-            "AND", new CodeAnd(),
-            "OR", new CodeOr(),
-            "NOT", new CodeNot(),
-            "<", new CodeLess(),
-            "<=", new CodeLE(),
-            "=", new CodeEqual(),
-            ">=", new CodeGE(),
-            ">", new CodeGreater(),
-        };
-        for (int i = 0; i < words.length; i += 2) {
-            define((String)words[i], (Code)words[i + 1]);
-        }
-    }
-
-    public void define(String word, Code code) {
-        dictionary.put(word.toUpperCase(), code);
-    }
-
-    public void run(String text) {
-        lexer = new ScratchLexer(text);
-        String word;
-        while ((word = lexer.nextWord()) != null) {
-            Object obj = compile(word);
-            if (immediate) {
-                interpret(obj);
-                immediate = false;
-            } else if (isCompiling()) {
-                stack.push(obj);
-            } else {
-                interpret(obj);
-            }
-        }
-    }
-
-    public Object compile(String word) {
-        word = word.toUpperCase();
-        if (dictionary.containsKey(word)) {
-            immediate = ((Code)dictionary.get(word)).immediate;
-            return dictionary.get(word);
-        }
-        try {
-            return Double.parseDouble(word);
-        } catch (NumberFormatException e) {
-            throw new RuntimeException("Unknown word: [" + word + "]");
-        }
-    }
-
-    public void interpret(Object word) {
-        if (word instanceof Code) {
-            ((Code)word).call(this);
-        } else {
-            stack.push(word);
-        }
-    }
-
-    public void startCompiling() {
-        stack = compile_buffer;
-    }
-
-    public void stopCompiling() {
-        stack = data_stack;
-    }
-
-    private boolean isCompiling() {
-        return stack == compile_buffer;
-    }
-
-    public static void main(String[] args) {
-        Scratch4 terp = new Scratch4();
-        String[] texts = {
-            "1 2 + print",
-            "3 4 - print",
-            "5 6 * print",
-            "7 8 / print",
-            "9 sqrt print",
-            "10 dup pstack clear",
-            "11 drop pstack",
-            "12 13 swap pstack clear",
-            "14 15 over pstack clear",
-            "16 17 18 rot pstack clear",
-            "var a 19 a ! a @ print",
-            "20 const b b print",
-            "\" 21\" print",
-            "22 /* comment */ print",
-            "23 ( comment ) print",
-            "24 // comment\n print",
-            ": c 25 print ; c",
-            "true [ 26 . ] iftrue",
-            "false [ 26.1 . ] iffalse",
-            "false [ 27 . ] iffalse",
-            "true [ 27.1 . ] iffalse",
-            "true true and [ 28 . ] iftrue",
-            "false true and [ 28.1 . ] iftrue",
-            "true false or [ 29 . ] iftrue",
-            "false false or [ 29.1 . ] iftrue",
-            "false not [ 30 . ] iftrue",
-            "31 31 < [ 31 . ] iffalse",
-            "32 32 <= [ 32 . ] iftrue",
-            "33 33 = [ 33 . ] iftrue",
-            "34 34 > [ 34 . ] iffalse",
-            "35 35 >= [ 35 . ] iftrue",
-            "[ 36 . ] 3 times",
-            "var d 0 d ! [ d @ 3 < ] [ 37 . d @ 1 + d ! ] while",
-            "var e 0 e ! [ e @ 3 >= ?break 38 . e @ 1 + e ! ] loop",
-            "var f 0 f ! [ 39 . f @ 1 + f ! f @ 3 < ?continue true ?break ] loop",
-            "40 40 % .",
-            "pstack",
-        };
-        for (String text : texts) {
-            terp.run(text);
-        }
-    }
-}
-
-abstract class Code {
-    public boolean immediate;
-
-    public abstract void call(Scratch4 terp);
-}
-
-abstract class CodeImmediate extends Code {
-    public CodeImmediate() {
-        immediate = true;
-    }
-}
-
-// Print and discard top of stack.
-class CodePrint extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object tos = terp.stack.pop();
-        System.out.println(tos);
-    }
-}
-
-// Print out the contents of the stack.
-class CodePstack extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        System.out.println(terp.stack);
-    }
-}
-
-class CodeAdd extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os + tos);
-    }
-}
-
-class CodeSub extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os - tos);
-    }
-}
-
-class CodeMul extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os * tos);
-    }
-}
-
-class CodeDiv extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push(_2os / tos);
-    }
-}
-
-class CodeMod extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        double _2os = (double)terp.stack.pop();
-        terp.stack.push((double)((int)_2os % (int)tos));
-    }
-}
-
-class CodeSqrt extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double tos = (double)terp.stack.pop();
-        terp.stack.push(Math.sqrt(tos));
-    }
-}
-
-// Duplicate the top of stack (TOS).
-class CodeDup extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object tos = terp.stack.pop();
-        terp.stack.push(tos);
-        terp.stack.push(tos);
-    }
-}
-
-// Throw away the TOS -- the opposite of DUP.
-class CodeDrop extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        terp.stack.pop();
-    }
-}
-
-// Exchange positions of TOS and second item on stack (2OS).
-class CodeSwap extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object tos = terp.stack.pop();
-        Object _2os = terp.stack.pop();
-        terp.stack.push(tos);
-        terp.stack.push(_2os);
-    }
-}
-
-// Copy 2OS on top of stack.
-class CodeOver extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object tos = terp.stack.pop();
-        Object _2os = terp.stack.pop();
-        terp.stack.push(_2os);
-        terp.stack.push(tos);
-        terp.stack.push(_2os);
-    }
-}
-
-// Bring the 3rd item on stack to the top.
-class CodeRot extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 3) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object tos = terp.stack.pop();
-        Object _2os = terp.stack.pop();
-        Object _3os = terp.stack.pop();
-        terp.stack.push(_2os);
-        terp.stack.push(tos);
-        terp.stack.push(_3os);
-    }
-}
-
-class CodeClear extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        terp.stack.clear();
-    }
-}
-
-class CodeVarRef extends Code {
-    public Object value;
-
-    @Override
-    public void call(Scratch4 terp) {
-        terp.stack.push(this);
-    }
-}
-
-// Read next word from input and make it a variable.
-class CodeVar extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        String var_name = terp.lexer.nextWord();
-        if (var_name == null) {
-            throw new RuntimeException("Unexpected end of input");
-        }
-        terp.define(var_name, new CodeVarRef());
-    }
-}
-
-// Store value of 2OS into variable given by TOS.
-class CodeStore extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        CodeVarRef reference = (CodeVarRef)terp.stack.pop();
-        Object new_value = terp.stack.pop();
-        reference.value = new_value;
-    }
-}
-
-// Replace reference to variable on TOS with its value.
-class CodeFetch extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        CodeVarRef reference = (CodeVarRef)terp.stack.pop();
-        terp.stack.push(reference.value);
-    }
-}
-
-class CodeConstRef extends Code {
-    private final Object value;
-
-    public CodeConstRef(Object value) {
-        this.value = value;
-    }
-
-    @Override
-    public void call(Scratch4 terp) {
-        terp.stack.push(value);
-    }
-}
-
-// Read next word from input and make it a constant with TOS as value.
-class CodeConst extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        String const_name = terp.lexer.nextWord();
-        if (const_name == null) {
-            throw new RuntimeException("Unexpected end of input");
-        }
-        Object const_value = terp.stack.pop();
-        terp.define(const_name, new CodeConstRef(const_value));
-    }
-}
-
-class CodeString extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        terp.stack.push(terp.lexer.nextCharsUpTo('"'));
-    }
-}
-
-class CodeCComment extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        String next_word;
-        do {
-            next_word = terp.lexer.nextWord();
-            if (next_word == null) {
-                throw new RuntimeException("Unexpected end of input");
-            }
-        } while (!next_word.endsWith("*/"));
-    }
-}
-
-class CodeComment extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        terp.lexer.nextCharsUpTo(')');
-    }
-}
-
-class CodeCCComment extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        terp.lexer.nextCharsUpTo('\n');
-    }
-}
-
-class CodeWordRef extends Code {
-    public Stack code;
-
-    public CodeWordRef(Stack code) {
-        this.code = code;
-    }
-
-    @Override
-    public void call(Scratch4 terp) {
-        int old_pointer = terp.code_pointer;
-        terp.code_pointer = 0;
-        while (terp.code_pointer >= 0 && terp.code_pointer < code.size()) {
-            terp.interpret(code.get(terp.code_pointer));
-            terp.code_pointer++;
-        }
-        terp.code_pointer = old_pointer;
-    }
-}
-
-class CodeDef extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        String new_word = terp.lexer.nextWord();
-        if (new_word == null) {
-            throw new RuntimeException("Unexpected end of input");
-        }
-        terp.latest = new_word;
-        terp.startCompiling();
-    }
-}
-
-class CodeEnd extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        Stack new_code = new Stack();
-        new_code.addAll(terp.stack); // Clone compile_buffer.
-        terp.stack.clear(); // Clear compile_buffer.
-        terp.define(terp.latest, new CodeWordRef(new_code));
-        terp.stopCompiling();
-    }
-}
-
-class CodeCompile extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        String next_word = terp.lexer.nextWord();
-        if (next_word == null) {
-            throw new RuntimeException("Unexpected end of input");
-        }
-        terp.stack.push(terp.compile(next_word));
-    }
-}
-
-class CodeDoImmediate extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        ((Code)terp.compile(terp.latest)).immediate = true;
-    }
-}
-
-class CodeList extends CodeImmediate {
-    @Override
-    public void call(Scratch4 terp) {
-        Stack list = new Stack();
-        Stack old_stack = terp.stack;
-        terp.stack = list;
-        do {
-            String next_word = terp.lexer.nextWord();
-            if (next_word == null) {
-                throw new RuntimeException("Unexpected end of input");
-            }
-            if (next_word.equals("]")) {
-                break;
-            }
-            Object obj = terp.compile(next_word);
-            if ((obj instanceof Code) && ((Code)obj).immediate) {
-                terp.interpret(obj);
-            } else {
-                terp.stack.push(obj);
-            }
-        } while (true);
-        terp.stack = old_stack;
-        terp.stack.push(list);
-    }
-}
-
-class CodeLength extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object temp = terp.stack.pop();
-        if (!(temp instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        terp.stack.push(((Stack)temp).size());
-    }
-}
-
-class CodeItem extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double index = (double)terp.stack.pop();
-        Object obj = terp.stack.pop();
-        if (obj instanceof Stack) {
-            terp.stack.push(((Stack)obj).get((int)index));
-        } else {
-            throw new RuntimeException("Object expected");
-        }
-    }
-}
-
-class CodeRun extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object temp = terp.stack.pop();
-        if (!(temp instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        terp.interpret(new CodeWordRef((Stack)temp));
-    }
-}
-
-class CodeTimes extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double count = (double)terp.stack.pop();
-        Object code = terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        Code word = new CodeWordRef((Stack)code);
-        for (int i = 0; i < count; i++) {
-            word.call(terp);
-        }
-    }
-}
-
-class CodeIfTrue extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object code = terp.stack.pop();
-        boolean cond = (boolean)terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        if (cond) {
-            terp.interpret(new CodeWordRef((Stack)code));
-        }
-    }
-}
-
-class CodeIfFalse extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object code = terp.stack.pop();
-        boolean cond = (boolean)terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        if (!cond) {
-            terp.interpret(new CodeWordRef((Stack)code));
-        }
-    }
-}
-
-class CodeWhile extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object code = terp.stack.pop();
-        Object cond = terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        if (!(cond instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        Code code_word = new CodeWordRef((Stack)code);
-        Code cond_word = new CodeWordRef((Stack)cond);
-        do {
-            cond_word.call(terp);
-            if (terp.stack.size() < 1) {
-                throw new RuntimeException("Not enough items on stack");
-            }
-            boolean val = (boolean)terp.stack.pop();
-            if (val) {
-                break;
-            }
-            code_word.call(terp);
-        } while (true);
-    }
-}
-
-class CodeContinue extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        boolean cond = (boolean)terp.stack.pop();
-        if (cond) {
-            terp.code_pointer = -1;
-        }
-    }
-}
-
-class CodeBreak extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        boolean cond = (boolean)terp.stack.pop();
-        if (cond) {
-            terp.code_pointer = Integer.MIN_VALUE;
-            terp.break_state = true;
-        }
-    }
-}
-
-class CodeLoop extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        Object code = terp.stack.pop();
-        if (!(code instanceof Stack)) {
-            throw new RuntimeException("List expected");
-        }
-        Code code_word = new CodeWordRef((Stack)code);
-        boolean old_break_state = terp.break_state;
-        terp.break_state = false;
-        do {
-            code_word.call(terp);
-        } while (!terp.break_state);
-        terp.break_state = old_break_state;
-    }
-}
-
-class CodeTrue extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        terp.stack.push(true);
-    }
-}
-
-class CodeFalse extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        terp.stack.push(false);
-    }
-}
-
-class CodeAnd extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        boolean term2 = (boolean)terp.stack.pop();
-        boolean term1 = (boolean)terp.stack.pop();
-        terp.stack.push(term1 && term2);
-    }
-}
-
-class CodeOr extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        boolean term2 = (boolean)terp.stack.pop();
-        boolean term1 = (boolean)terp.stack.pop();
-        terp.stack.push(term1 || term2);
-    }
-}
-
-class CodeNot extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 1) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        boolean term = (boolean)terp.stack.pop();
-        terp.stack.push(!term);
-    }
-}
-
-class CodeLess extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 < term2);
-    }
-}
-
-class CodeLE extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 <= term2);
-    }
-}
-
-class CodeEqual extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 == term2);
-    }
-}
-
-class CodeGE extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 >= term2);
-    }
-}
-
-class CodeGreater extends Code {
-    @Override
-    public void call(Scratch4 terp) {
-        if (terp.stack.size() < 2) {
-            throw new RuntimeException("Not enough items on stack");
-        }
-        double term2 = (double)terp.stack.pop();
-        double term1 = (double)terp.stack.pop();
-        terp.stack.push(term1 > term2);
-    }
-}
+/**
+ * Original JavaScript Version: http://scratch-lang.notimetoplay.org/scratch-lang4.js
+ */
+package scratch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// A value packed into a long. A number is its own bits; anything else is a
+// NaN that no arithmetic makes, since the NaNs it makes from numbers have
+// no payload, with its ScratchStack tag in the payload and, for a boolean,
+// its truth in the low bit. Strings, lists and other
+// objects are held beside the long, in a side table with the same index.
+// A number that is an int may also be a NaN of its own holding the int, so
+// that arithmetic on two of them stays in long for as long as the result
+// is one too; either form is the same number to the language.
+final class ScratchValue {
+    private static final long BOXED = 0xFFF9000000000000L;
+    private static final long TOP = 0xFFFF000000000000L;
+    private static final long INTEGER = 0xFFFA000000000000L; // An int below.
+    private static final long HIGH = 0xFFFFFFFF00000000L;
+
+    public static final long FALSE = box(ScratchStack.BOOLEAN, 0);
+    public static final long TRUE = box(ScratchStack.BOOLEAN, 1);
+    public static final long NULL = box(ScratchStack.OBJECT, 0); // Unset variables.
+
+    private ScratchValue() {
+    }
+
+    private static long box(byte tag, int payload) {
+        return BOXED | (long)tag << 32 | payload;
+    }
+
+    public static long of(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    // VALUE as an integer if it fits in an int.
+    public static long integer(long value) {
+        if (value != (int)value) {
+            return of((double)value);
+        }
+        return INTEGER | value & 0xFFFFFFFFL;
+    }
+
+    // VALUE as an integer if it is one, for literals and other numbers
+    // from outside arithmetic. -0.0 stays a double.
+    public static long number(double value) {
+        int n = (int)value;
+        if (n != value || n == 0 && Double.doubleToRawLongBits(value) != 0) {
+            return of(value);
+        }
+        return INTEGER | n & 0xFFFFFFFFL;
+    }
+
+    public static long of(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    // The long for an object of type TAG, which goes in the side table.
+    public static long reference(byte tag) {
+        return box(tag, 0);
+    }
+
+    public static boolean isNumber(long value) {
+        return (value & TOP) != BOXED;
+    }
+
+    public static boolean isInteger(long value) {
+        return (value & HIGH) == INTEGER;
+    }
+
+    public static byte tagOf(long value) {
+        return isNumber(value) ? ScratchStack.NUMBER : (byte)(value >>> 32);
+    }
+
+    public static double asDouble(long value) {
+        return isInteger(value) ? (int)value : Double.longBitsToDouble(value);
+    }
+
+    public static int asInt(long value) {
+        return isInteger(value) ? (int)value : (int)Double.longBitsToDouble(value);
+    }
+
+    // Arithmetic on numbers, in long when both are integers. Results that
+    // are not, such as 1 2 / or 0 -1 *, which is -0.0, are doubles.
+    public static long add(long a, long b) {
+        if (isInteger(a) && isInteger(b)) {
+            return integer((long)(int)a + (int)b);
+        }
+        return of(asDouble(a) + asDouble(b));
+    }
+
+    public static long sub(long a, long b) {
+        if (isInteger(a) && isInteger(b)) {
+            return integer((long)(int)a - (int)b);
+        }
+        return of(asDouble(a) - asDouble(b));
+    }
+
+    public static long mul(long a, long b) {
+        if (isInteger(a) && isInteger(b)) {
+            long product = (long)(int)a * (int)b;
+            if (product != 0 || ((int)a | (int)b) >= 0) {
+                return integer(product);
+            }
+        }
+        return of(asDouble(a) * asDouble(b));
+    }
+
+    public static long div(long a, long b) {
+        if (isInteger(a) && isInteger(b) && (int)b != 0 && (int)a % (int)b == 0
+                && ((int)a != 0 || (int)b > 0)) {
+            return integer((long)(int)a / (int)b);
+        }
+        return of(asDouble(a) / asDouble(b));
+    }
+
+    public static long mod(long a, long b) {
+        return integer(asInt(a) % asInt(b));
+    }
+
+    public static boolean less(long a, long b) {
+        if (isInteger(a) && isInteger(b)) {
+            return (int)a < (int)b;
+        }
+        return asDouble(a) < asDouble(b);
+    }
+
+    public static boolean lessOrEqual(long a, long b) {
+        if (isInteger(a) && isInteger(b)) {
+            return (int)a <= (int)b;
+        }
+        return asDouble(a) <= asDouble(b);
+    }
+
+    public static boolean equal(long a, long b) {
+        if (isInteger(a) && isInteger(b)) {
+            return a == b;
+        }
+        return asDouble(a) == asDouble(b);
+    }
+
+    public static boolean asBoolean(long value) {
+        return (value & 1) != 0;
+    }
+}
+
+// Value stack without boxing for numbers and booleans.
+// Every slot is a ScratchValue in VALUES; the objects of the rest are in
+// OBJS.
+class ScratchStack {
+    public static final byte NUMBER = 0;
+    public static final byte BOOLEAN = 1;
+    public static final byte STRING = 2;
+    public static final byte LIST = 3;
+    public static final byte VAR = 4;
+    public static final byte CODE = 5;
+    public static final byte OBJECT = 6;
+
+    private long[] values;
+    private Object[] objs;
+    private int size;
+    Code quotation; // Compiled body, once the list has been run.
+
+    public ScratchStack() {
+        this(16);
+    }
+
+    public ScratchStack(int capacity) {
+        values = new long[capacity];
+        objs = new Object[capacity];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(objs, 0, size, null);
+        size = 0;
+    }
+
+    public byte tagAt(int index) {
+        return ScratchValue.tagOf(values[index]);
+    }
+
+    private void grow() {
+        int capacity = Math.max(values.length * 2, 16);
+        values = Arrays.copyOf(values, capacity);
+        objs = Arrays.copyOf(objs, capacity);
+    }
+
+    public void push(double value) {
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = ScratchValue.of(value);
+        size++;
+    }
+
+    public void push(boolean value) {
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = ScratchValue.of(value);
+        size++;
+    }
+
+    // A ScratchValue that is a number.
+    public void pushNumber(long value) {
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = value;
+        size++;
+    }
+
+    public void push(Object value) {
+        if (value instanceof Double) {
+            pushNumber(ScratchValue.number((Double)value));
+            return;
+        }
+        if (value instanceof Boolean) {
+            push(((Boolean)value).booleanValue());
+            return;
+        }
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = ScratchValue.reference(tagOf(value));
+        objs[size] = value;
+        size++;
+    }
+
+    public static byte tagOf(Object value) {
+        if (value instanceof Double) {
+            return NUMBER;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        if (value instanceof String) {
+            return STRING;
+        }
+        if (value instanceof ScratchStack) {
+            return LIST;
+        }
+        if (value instanceof CodeVarRef) {
+            return VAR;
+        }
+        if (value instanceof Code) {
+            return CODE;
+        }
+        return OBJECT;
+    }
+
+    // Copy the INDEX-th slot of FROM on top of this stack.
+    public void pushItem(ScratchStack from, int index) {
+        if (index < 0 || index >= from.size) {
+            throw new RuntimeException("Index out of range");
+        }
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = from.values[index];
+        objs[size] = from.objs[index];
+        size++;
+    }
+
+    public double popDouble() {
+        long value = values[size - 1];
+        if (!ScratchValue.isNumber(value)) {
+            throw new RuntimeException("Number expected");
+        }
+        size--;
+        return ScratchValue.asDouble(value);
+    }
+
+    // The number on top as a ScratchValue.
+    public long popNumber() {
+        long value = values[size - 1];
+        if (!ScratchValue.isNumber(value)) {
+            throw new RuntimeException("Number expected");
+        }
+        size--;
+        return value;
+    }
+
+    public boolean popBoolean() {
+        long value = values[size - 1];
+        if (value != ScratchValue.TRUE && value != ScratchValue.FALSE) {
+            throw new RuntimeException("Boolean expected");
+        }
+        size--;
+        return ScratchValue.asBoolean(value);
+    }
+
+    // For words that know the types on top of the stack.
+    public double popDoubleUnchecked() {
+        return ScratchValue.asDouble(values[--size]);
+    }
+
+    public long popNumberUnchecked() {
+        return values[--size];
+    }
+
+    public boolean popBooleanUnchecked() {
+        return ScratchValue.asBoolean(values[--size]);
+    }
+
+    // Pop the top of stack into REFERENCE.
+    public void store(CodeVarRef reference) {
+        size--;
+        reference.value = values[size];
+        reference.object = objs[size];
+        objs[size] = null;
+    }
+
+    // Push the value of REFERENCE.
+    public void fetch(CodeVarRef reference) {
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = reference.value;
+        objs[size] = reference.object;
+        size++;
+    }
+
+    // Push the value in SLOT of a frame, given as the values and objects
+    // of its slots.
+    public void fetchSlot(long[] frame, Object[] objects, int slot) {
+        if (size == values.length) {
+            grow();
+        }
+        values[size] = frame[slot];
+        objs[size] = objects[slot];
+        size++;
+    }
+
+    // Pop the top of stack into SLOT of a frame.
+    public void storeSlot(long[] frame, Object[] objects, int slot) {
+        size--;
+        frame[slot] = values[size];
+        objects[slot] = objs[size];
+        objs[size] = null;
+    }
+
+    public Object pop() {
+        Object value = get(size - 1);
+        size--;
+        objs[size] = null;
+        return value;
+    }
+
+    public Object get(int index) {
+        long value = values[index];
+        switch (ScratchValue.tagOf(value)) {
+        case NUMBER:
+            return ScratchValue.asDouble(value);
+        case BOOLEAN:
+            return ScratchValue.asBoolean(value);
+        default:
+            return objs[index];
+        }
+    }
+
+    public void drop() {
+        size--;
+        objs[size] = null;
+    }
+
+    // Drop 2OS.
+    public void nip() {
+        exchange(size - 1, size - 2);
+        drop();
+    }
+
+    public void dup() {
+        pushItem(this, size - 1);
+    }
+
+    public void over() {
+        pushItem(this, size - 2);
+    }
+
+    public void swap() {
+        exchange(size - 1, size - 2);
+    }
+
+    // ( a b c -- b c a )
+    public void rot() {
+        exchange(size - 3, size - 2);
+        exchange(size - 2, size - 1);
+    }
+
+    private void exchange(int i, int j) {
+        long value = values[i];
+        Object obj = objs[i];
+        values[i] = values[j];
+        objs[i] = objs[j];
+        values[j] = value;
+        objs[j] = obj;
+    }
+
+    public void addAll(ScratchStack other) {
+        for (int i = 0; i < other.size; i++) {
+            pushItem(other, i);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(get(i));
+        }
+        return sb.append(']').toString();
+    }
+}
+
+public class Scratch4 {
+    // The built-in words, shared by every interpreter and never changed
+    // once made: an interpreter interns names of its own over
+    // BUILTIN_SYMBOLS, and copies BUILTINS the first time it defines a
+    // word, so that a new one costs only a few objects.
+    private static final ScratchSymbols BUILTIN_SYMBOLS = new ScratchSymbols();
+    private static final Code[] BUILTINS;
+
+    static {
+        Object[] words = {
+            "PRINT", new CodePrint(),
+            ".", new CodePrint(),
+            "PSTACK", new CodePstack(),
+            ".S", new CodePstack(),
+            "+", new CodeAdd(),
+            "-", new CodeSub(),
+            "*", new CodeMul(),
+            "/", new CodeDiv(),
+            "%", new CodeMod(),
+            "SQRT", new CodeSqrt(),
+            "DUP", new CodeDup(),
+            "DROP", new CodeDrop(),
+            "SWAP", new CodeSwap(),
+            "OVER", new CodeOver(),
+            "ROT", new CodeRot(),
+            "CLEAR", new CodeClear(),
+            "VAR", new CodeVar(),
+            "STORE", new CodeStore(),
+            "!", new CodeStore(),
+            "FETCH", new CodeFetch(),
+            "@", new CodeFetch(),
+            "CONST", new CodeConst(),
+            "\"", new CodeString(),
+            "/*", new CodeCComment(),
+            "(", new CodeComment(),
+            "//", new CodeCCComment(),
+            "DEF", new CodeDef(),
+            ":", new CodeDef(),
+            "END", new CodeEnd(),
+            ";", new CodeEnd(),
+            "[", new CodeList(),
+            "LENGTH", new CodeLength(),
+            "ITEM", new CodeItem(),
+            "RUN", new CodeRun(),
+            "TIMES", new CodeTimes(),
+            "IFTRUE", new CodeIfTrue(),
+            "IFFALSE", new CodeIfFalse(),
+            "WHILE", new CodeWhile(),
+            "?CONTINUE", new CodeContinue(),
+            "?BREAK", new CodeBreak(),
+            "LOOP", new CodeLoop(),
+            "RECURSE", new CodeRecurseWord(),
+            "{", new CodeLocals(),
+            "YIELD", new CodeYield(),
+            "TRUE", new CodeTrue(),
+            "FALSE", new CodeFalse(),
+            "AND", new CodeAnd(),
+            "OR", new CodeOr(),
+            "NOT", new CodeNot(),
+            "<", new CodeLess(),
+            "<=", new CodeLE(),
+            "=", new CodeEqual(),
+            ">=", new CodeGE(),
+            ">", new CodeGreater(),
+        };
+        Code[] builtins = new Code[words.length / 2];
+        for (int i = 0; i < words.length; i += 2) {
+            int symbol = BUILTIN_SYMBOLS.intern((String)words[i]);
+            builtins[symbol] = (Code)words[i + 1];
+        }
+        BUILTINS = Arrays.copyOf(builtins, BUILTIN_SYMBOLS.size());
+    }
+
+    // Defaults of the settings below, read once.
+    private static final int JIT_THRESHOLD = Integer.getInteger("scratch.jit.threshold", 1000);
+    private static final int INLINE_THRESHOLD = Integer.getInteger("scratch.inline.threshold", 8);
+    private static final String ENGINE = System.getProperty("scratch.engine", "threaded");
+    private static final boolean STACKLESS = Boolean.getBoolean("scratch.stackless");
+    private static final int RETURN_LIMIT = Integer.getInteger("scratch.return.limit", 1 << 20);
+    private static final long STEP_LIMIT = Long.getLong("scratch.limit.steps", Long.MAX_VALUE);
+    private static final long TIME_LIMIT = Long.getLong("scratch.limit.nanos", Long.MAX_VALUE);
+    private static final int DEPTH_LIMIT = Integer.getInteger("scratch.limit.depth", Integer.MAX_VALUE);
+    private static final long BYTES_LIMIT = Long.getLong("scratch.limit.bytes", Long.MAX_VALUE);
+    private static final int POLL_INTERVAL = Integer.getInteger("scratch.poll.interval", 1024);
+
+    private static final Code[][] NO_CODE = {};
+    private static final int[] NO_IPS = {};
+    private static final long[][] NO_FRAMES = {};
+    private static final Object[][] NO_OBJECTS = {};
+
+    private ScratchSymbols symbols = new ScratchSymbols(BUILTIN_SYMBOLS);
+    private Code[] dictionary = BUILTINS; // Indexed by symbol ID.
+    private ScratchNumber number = new ScratchNumber();
+    private ScratchStack data_stack = new ScratchStack();
+    private ScratchStack compile_buffer; // Made on the first definition.
+    public ScratchStack stack = data_stack;
+    private boolean immediate = false;
+    public ScratchLexer lexer;
+    public String latest;
+    public boolean break_state;
+    public long[] frame; // Loop state and locals of the running word.
+    public Object[] frame_objects; // Objects of the values of its locals.
+    // Calls after which a word is compiled to JVM bytecode; 0 disables it.
+    public int jit_threshold = JIT_THRESHOLD;
+    // Longest word, in compiled words, that is copied into its callers.
+    public int inline_threshold = INLINE_THRESHOLD;
+    // How compiled words run: "threaded" as CodeWordRef, word by word and
+    // then through the JIT, "switch" as CodeSwitch or "nodes" as CodeNodes.
+    public String engine = ENGINE;
+    // Whether user words and quotations run in execute(), on the return
+    // stack below rather than on the Java stack; the JIT is not used then.
+    public boolean stackless = STACKLESS;
+    // Deepest the return stack may grow.
+    public int return_limit = RETURN_LIMIT;
+    public CodeRecurse recursion; // RECURSE in the word being defined.
+    public ArrayList<CodeLocalRef> locals; // Locals of the word being defined.
+
+    // Callers' code, IP and frame, for execute(), grown from nothing.
+    private Code[][] return_code = NO_CODE;
+    private int[] return_ip = NO_IPS;
+    private long[][] return_frame = NO_FRAMES;
+    private Object[][] return_objects = NO_OBJECTS;
+    private int return_depth;
+
+    // Whether a stackless run may stop to let other tasks run, when YIELD
+    // runs or BUDGET is used up, and go on at the next proceed().
+    public boolean suspendable;
+    // Calls and backward branches left until a suspendable run stops.
+    public long budget = Long.MAX_VALUE;
+    private boolean pausing; // YIELD ran since the last stop.
+
+    // Limits on one run, from start() to the end of its text, for running
+    // scripts that cannot be trusted to end. Setting any of them makes runs
+    // stackless, since execute() is where steps are counted; going over one
+    // throws a ScratchLimit.
+    public long step_limit = STEP_LIMIT;
+    public long time_limit = TIME_LIMIT;
+    public int depth_limit = DEPTH_LIMIT;
+    public long bytes_limit = BYTES_LIMIT;
+    // Steps between checks of the limits, when there are any.
+    public int poll_interval = POLL_INTERVAL;
+    private boolean forced_stackless; // Set by start() for the limits.
+    private long ticks; // Steps left until the next poll().
+    private long slice; // What ticks was last set to.
+    private long steps; // Steps of this run up to the last poll().
+    private long started; // System.nanoTime() at start().
+    private long bytes; // Bytes of lists and strings made by this run.
+    private boolean at_top; // Whether execute() is called from proceed().
+    private boolean suspended; // In the word on top of the return stack.
+    private int suspended_base; // Depth of the return stack to run back to.
+    private long[] suspended_frame; // Frame to restore then.
+    private Object[] suspended_objects;
+
+    public int intern(String word) {
+        return symbols.intern(word);
+    }
+
+    public void define(String word, Code code) {
+        define(intern(word), code);
+    }
+
+    public void define(int symbol, Code code) {
+        if (dictionary == BUILTINS || symbol >= dictionary.length) {
+            dictionary = Arrays.copyOf(dictionary, Math.max(dictionary.length * 2, symbol + 1));
+        }
+        dictionary[symbol] = code;
+    }
+
+    public Code lookup(int symbol) {
+        return symbol >= 0 && symbol < dictionary.length ? dictionary[symbol] : null;
+    }
+
+    // Swap in NEW_CODE for SYMBOL unless it has been redefined since.
+    public void replace(int symbol, Code old_code, Code new_code) {
+        if (lookup(symbol) == old_code) {
+            define(symbol, new_code);
+        }
+    }
+
+    // The compiled form of a list run as code. Lists are not changed once
+    // built, so each one is compiled on its first run and reused after.
+    public Code quotation(Object list) {
+        if (!(list instanceof ScratchStack)) {
+            throw new RuntimeException("List expected");
+        }
+        ScratchStack quote = (ScratchStack)list;
+        if (quote.quotation == null) {
+            quote.quotation = executable(ScratchOptimizer.compile(quote, this, false));
+        }
+        return quote.quotation;
+    }
+
+    // WORD as the engine runs it.
+    public Code executable(CodeWordRef word) {
+        if (stackless) {
+            // The other engines run a word on the Java stack, where
+            // execute() neither sees its calls nor counts its steps.
+            return word;
+        }
+        if (engine.equals("switch")) {
+            return CodeSwitch.compile(word);
+        }
+        if (engine.equals("nodes")) {
+            return CodeNodes.compile(word);
+        }
+        return word;
+    }
+
+    public void run(String text) {
+        start(text);
+        while (!proceed()) {
+            budget = Long.MAX_VALUE;
+        }
+    }
+
+    public void run(ScratchProgram program) {
+        start(program);
+        while (!proceed()) {
+            budget = Long.MAX_VALUE;
+        }
+    }
+
+    // TEXT lexed once, to be run any number of times by run() and
+    // start(), by this or any other interpreter. Programs are kept by
+    // text, so run(String) lexes a script it is sent again and again only
+    // the first time.
+    public ScratchProgram prepare(String text) {
+        ScratchProgram program = ScratchProgram.cached(text, symbols);
+        return program != null ? program : new ScratchProgram(text, symbols);
+    }
+
+    // Set TEXT up to be run by proceed().
+    public void start(String text) {
+        ScratchProgram program = ScratchProgram.cached(text, symbols);
+        start(program != null ? new ScratchLexer(program, symbols) : new ScratchLexer(text, symbols));
+    }
+
+    public void start(ScratchProgram program) {
+        start(new ScratchLexer(program, symbols));
+    }
+
+    private void start(ScratchLexer lexer) {
+        this.lexer = lexer;
+        suspended = false;
+        pausing = false;
+        steps = 0;
+        bytes = 0;
+        started = System.nanoTime();
+        if (limited() && !stackless) {
+            stackless = true;
+            forced_stackless = true;
+        } else if (forced_stackless && !limited()) {
+            stackless = false;
+            forced_stackless = false;
+        }
+    }
+
+    public boolean limited() {
+        return step_limit != Long.MAX_VALUE || time_limit != Long.MAX_VALUE
+                || depth_limit != Integer.MAX_VALUE || bytes_limit != Long.MAX_VALUE;
+    }
+
+    // Count SIZE bytes of a new list or string against bytes_limit.
+    public void allocate(long size) {
+        bytes += size;
+        if (bytes > bytes_limit) {
+            throw ScratchLimit.BYTES;
+        }
+    }
+
+    // Have a suspendable run stop at its next step, as YIELD does.
+    public void pause() {
+        pausing = true;
+        slice -= ticks;
+        ticks = 0;
+    }
+
+    // Run the text given to start() to its end and return true, or, if the
+    // run is suspendable, until it stops and return false; the next call
+    // goes on from there.
+    public boolean proceed() {
+        refill();
+        if (suspended) {
+            resume();
+            if (suspended) {
+                return false;
+            }
+        }
+        while (lexer.nextToken()) {
+            Object obj = compileToken();
+            at_top = true;
+            if (immediate) {
+                interpret(obj);
+                immediate = false;
+            } else if (isCompiling()) {
+                stack.push(obj);
+            } else {
+                interpret(obj);
+            }
+            at_top = false;
+            if (suspended || suspendable && (pausing || budget <= 0)) {
+                pausing = false;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Object compile(String word) {
+        CodeLocalRef local = local(symbols.find(word));
+        if (local != null) {
+            immediate = false;
+            return local;
+        }
+        Code code = lookup(symbols.find(word));
+        if (code != null) {
+            immediate = code.immediate;
+            return code;
+        }
+        if (number.scan(word, 0, word.length())) {
+            return number.value;
+        }
+        throw new ScratchError("Unknown word: [" + word.toUpperCase() + "]");
+    }
+
+    // Same as compile() for the lexer's current word, without copying it.
+    public Object compileToken() {
+        CodeLocalRef local = local(lexer.symbol);
+        if (local != null) {
+            immediate = false;
+            return local;
+        }
+        Code code = lookup(lexer.symbol);
+        if (code != null) {
+            immediate = code.immediate;
+            return code;
+        }
+        if (lexer.scanNumber(number)) {
+            return number.value;
+        }
+        throw new ScratchError("Unknown word: [" + lexer.tokenText().toUpperCase() + "]");
+    }
+
+    // The local named SYMBOL in the word being defined, the latest if
+    // there are more than one, or null.
+    private CodeLocalRef local(int symbol) {
+        if (locals == null || symbol < 0) {
+            return null;
+        }
+        for (int i = locals.size() - 1; i >= 0; i--) {
+            if (locals.get(i).symbol == symbol) {
+                return locals.get(i);
+            }
+        }
+        return null;
+    }
+
+    public void interpret(Object word) {
+        if (word instanceof Code && stackless) {
+            execute((Code)word);
+        } else if (word instanceof Code) {
+            ((Code)word).call(this);
+        } else {
+            stack.push(word);
+        }
+    }
+
+    // Run WORD and everything it calls in one loop, with an explicit return
+    // stack: a call pushes the caller's code, IP and frame and carries on in
+    // the callee, and a call that is the last word of its caller takes the
+    // caller's place, so a word ending in a call to itself runs in
+    // constant space.
+    public void execute(Code word) {
+        boolean top = at_top;
+        at_top = false;
+        CodeWordRef callee = word.enter(this);
+        if (callee == null) {
+            return;
+        }
+        long[] saved = frame;
+        Object[] saved_objects = frame_objects;
+        if (callee.frame_size > 0) {
+            frame = new long[callee.frame_size];
+        }
+        if (callee.locals > 0) {
+            frame_objects = new Object[callee.locals];
+        }
+        execute(callee.code, 0, return_depth, saved, saved_objects, top && suspendable);
+    }
+
+    // Go on with the run that stopped.
+    private void resume() {
+        suspended = false;
+        return_depth--;
+        Code[] code = return_code[return_depth];
+        int ip = return_ip[return_depth];
+        frame = return_frame[return_depth];
+        frame_objects = return_objects[return_depth];
+        return_code[return_depth] = null;
+        return_frame[return_depth] = null;
+        return_objects[return_depth] = null;
+        execute(code, ip, suspended_base, suspended_frame, suspended_objects, true);
+    }
+
+    // The loop of execute(), from IP in CODE until the return stack is back
+    // down to BASE. Every call and backward branch is a step, and every so
+    // many steps poll() checks the limits and the budget; once the budget
+    // is used up a SUSPENDABLE run pushes where it is, as if for a call,
+    // and returns.
+    private void execute(Code[] code, int ip, int base, long[] saved, Object[] saved_objects,
+            boolean suspendable) {
+        boolean stopped = false;
+        try {
+            while (true) {
+                if (ip >= code.length) {
+                    if (return_depth == base) {
+                        break;
+                    }
+                    return_depth--;
+                    code = return_code[return_depth];
+                    ip = return_ip[return_depth];
+                    frame = return_frame[return_depth];
+                    frame_objects = return_objects[return_depth];
+                    continue;
+                }
+                if (!code[ip].enters) {
+                    int next = code[ip].exec(this, ip);
+                    if (next <= ip && --ticks <= 0 && poll(suspendable)) {
+                        pushReturn(code, next);
+                        stopped = true;
+                        return;
+                    }
+                    ip = next;
+                    continue;
+                }
+                CodeWordRef callee = code[ip].enter(this);
+                if (callee == null) {
+                    ip++;
+                } else {
+                    if (ip + 1 < code.length) {
+                        pushReturn(code, ip + 1);
+                    }
+                    code = callee.code;
+                    ip = 0;
+                    if (callee.frame_size > 0) {
+                        frame = new long[callee.frame_size];
+                    }
+                    if (callee.locals > 0) {
+                        frame_objects = new Object[callee.locals];
+                    }
+                }
+                if (--ticks <= 0 && poll(suspendable)) {
+                    pushReturn(code, ip);
+                    stopped = true;
+                    return;
+                }
+            }
+        } finally {
+            if (stopped) {
+                suspended = true;
+                suspended_base = base;
+                suspended_frame = saved;
+                suspended_objects = saved_objects;
+            } else {
+                Arrays.fill(return_code, base, return_depth, null);
+                Arrays.fill(return_frame, base, return_depth, null);
+                Arrays.fill(return_objects, base, return_depth, null);
+                return_depth = base;
+            }
+            frame = saved;
+            frame_objects = saved_objects;
+        }
+    }
+
+    // Count the steps since the last poll against the budget and the
+    // limits, and return whether a SUSPENDABLE run should stop here.
+    private boolean poll(boolean suspendable) {
+        long used = slice - ticks;
+        steps += used;
+        budget -= used;
+        if (steps > step_limit) {
+            throw ScratchLimit.STEPS;
+        }
+        if (time_limit != Long.MAX_VALUE && System.nanoTime() - started > time_limit) {
+            throw ScratchLimit.TIME;
+        }
+        if (stack.size() > depth_limit) {
+            throw ScratchLimit.DEPTH;
+        }
+        refill();
+        if (suspendable && (pausing || budget <= 0)) {
+            pausing = false;
+            return true;
+        }
+        return false;
+    }
+
+    // Steps until the next poll: the rest of the budget, or fewer when the
+    // limits are to be checked sooner.
+    private void refill() {
+        long next = limited() ? Math.min(budget, poll_interval) : budget;
+        ticks = slice = Math.max(next, 1);
+    }
+
+    // Count a backward branch taken outside execute(), as by the rest of a
+    // word whose stack check failed, so that the limits hold there too.
+    public void backward() {
+        if (--ticks <= 0) {
+            poll(false);
+        }
+    }
+
+    private void pushReturn(Code[] code, int ip) {
+        if (return_depth == return_code.length) {
+            if (return_depth >= return_limit) {
+                throw new RuntimeException("Return stack overflow");
+            }
+            int capacity = Math.min(Math.max(return_depth * 2, 16), Math.max(return_limit, 16));
+            return_code = Arrays.copyOf(return_code, capacity);
+            return_ip = Arrays.copyOf(return_ip, capacity);
+            return_frame = Arrays.copyOf(return_frame, capacity);
+            return_objects = Arrays.copyOf(return_objects, capacity);
+        }
+        return_code[return_depth] = code;
+        return_ip[return_depth] = ip;
+        return_frame[return_depth] = frame;
+        return_objects[return_depth] = frame_objects;
+        return_depth++;
+    }
+
+    // WORD as the callee of execute(), or null once it has run, as words of
+    // the other engines do.
+    public CodeWordRef callable(Code word) {
+        return word.enter(this);
+    }
+
+    public void startCompiling() {
+        if (compile_buffer == null) {
+            compile_buffer = new ScratchStack();
+        }
+        stack = compile_buffer;
+    }
+
+    public void stopCompiling() {
+        stack = data_stack;
+    }
+
+    private boolean isCompiling() {
+        return stack == compile_buffer;
+    }
+
+    public static void main(String[] args) {
+        Scratch4 terp = new Scratch4();
+        String[] texts = {
+            "1 2 + print",
+            "3 4 - print",
+            "5 6 * print",
+            "7 8 / print",
+            "9 sqrt print",
+            "10 dup pstack clear",
+            "11 drop pstack",
+            "12 13 swap pstack clear",
+            "14 15 over pstack clear",
+            "16 17 18 rot pstack clear",
+            "var a 19 a ! a @ print",
+            "20 const b b print",
+            "\" 21\" print",
+            "22 /* comment */ print",
+            "23 ( comment ) print",
+            "24 // comment\n print",
+            ": c 25 print ; c",
+            "true [ 26 . ] iftrue",
+            "false [ 26.1 . ] iffalse",
+            "false [ 27 . ] iffalse",
+            "true [ 27.1 . ] iffalse",
+            "true true and [ 28 . ] iftrue",
+            "false true and [ 28.1 . ] iftrue",
+            "true false or [ 29 . ] iftrue",
+            "false false or [ 29.1 . ] iftrue",
+            "false not [ 30 . ] iftrue",
+            "31 31 < [ 31 . ] iffalse",
+            "32 32 <= [ 32 . ] iftrue",
+            "33 33 = [ 33 . ] iftrue",
+            "34 34 > [ 34 . ] iffalse",
+            "35 35 >= [ 35 . ] iftrue",
+            "[ 36 . ] 3 times",
+            "var d 0 d ! [ d @ 3 < ] [ 37 . d @ 1 + d ! ] while",
+            "var e 0 e ! [ e @ 3 >= ?break 38 . e @ 1 + e ! ] loop",
+            "var f 0 f ! [ 39 . f @ 1 + f ! f @ 3 < ?continue true ?break ] loop",
+            "var e : w 0 e ! [ e @ 1 + e ! e @ 2 >= [ true ?break ] iftrue e @ . ] loop ; w",
+            "var e : w 0 e ! [ 7 . true [ e @ 1 + e ! e @ 3 < ?continue 99 . ] iftrue e @ 3 >= ?break ] loop ; w",
+            "var v 0 v ! [ v @ 2 >= ] [ v @ 1 + v ! v @ 5 < ?continue v @ . ] while",
+            "var v : f 0 v ! [ v @ 2 >= ] [ v @ 1 + v ! v @ 5 < ?continue v @ . ] while ; f",
+            "var u 0 u ! [ u @ 1 + u ! u @ 3 < ?continue u @ . ] 2 times",
+            "var u : g 0 u ! [ u @ 1 + u ! u @ 3 < ?continue u @ . ] 2 times ; g",
+            "40 40 % .",
+            "\"",
+            "pstack",
+        };
+        for (String text : texts) {
+            try {
+                terp.run(text);
+            } catch (ScratchError e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+}
+
+abstract class Code {
+    public static final int EXIT = Integer.MAX_VALUE; // IP past any code.
+
+    public boolean immediate;
+    public boolean enters; // Whether enter() may return a word to call.
+    public int consumes = -1; // Items taken from the stack, -1 if unknown.
+    public int produces; // Items left in their place.
+
+    public abstract void call(Scratch4 terp);
+
+    // Take the arguments of a call to another word and return it, for
+    // Scratch4.execute() to call with its return stack. Words that call
+    // nothing just run and return null.
+    public CodeWordRef enter(Scratch4 terp) {
+        call(terp);
+        return null;
+    }
+
+    // Run as the IP-th word of compiled code and return the next IP.
+    public int exec(Scratch4 terp, int ip) {
+        call(terp);
+        return ip + 1;
+    }
+}
+
+abstract class CodeImmediate extends Code {
+    public CodeImmediate() {
+        immediate = true;
+    }
+}
+
+// A word with a fixed stack effect, written as in Forth: "n n -- b" takes
+// two numbers and leaves a boolean. n, b, s, l and v stand for a number,
+// boolean, string, list and variable, ? for an item of any type, and other
+// letters for an item of any type that the word may copy. call() checks
+// that the stack holds enough items; run() is the word itself, which
+// compiled code calls directly where ScratchOptimizer has proven that they
+// are there, and runTyped() where it has proven their types as well.
+abstract class CodePrimitive extends Code {
+    public static final byte ANY = -1;
+    public static final byte COPY = -2; // COPY - k: the type of item k taken.
+
+    public final byte[] takes; // ScratchStack tags or ANY, bottom first.
+    public final byte[] leaves; // Tags, ANY or COPY - k.
+
+    public CodePrimitive(String effect) {
+        int dashes = effect.indexOf("--");
+        String in = effect.substring(0, dashes).replace(" ", "");
+        String out = effect.substring(dashes + 2).replace(" ", "");
+        takes = new byte[in.length()];
+        leaves = new byte[out.length()];
+        for (int i = 0; i < takes.length; i++) {
+            takes[i] = typeOf(in.charAt(i));
+        }
+        for (int i = 0; i < leaves.length; i++) {
+            char c = out.charAt(i);
+            leaves[i] = typeOf(c) == ANY && in.indexOf(c) >= 0 ? (byte)(COPY - in.indexOf(c)) : typeOf(c);
+        }
+        consumes = takes.length;
+        produces = leaves.length;
+    }
+
+    private static byte typeOf(char c) {
+        switch (c) {
+        case 'n':
+            return ScratchStack.NUMBER;
+        case 'b':
+            return ScratchStack.BOOLEAN;
+        case 's':
+            return ScratchStack.STRING;
+        case 'l':
+            return ScratchStack.LIST;
+        case 'v':
+            return ScratchStack.VAR;
+        default:
+            return ANY;
+        }
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < consumes) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        run(terp);
+    }
+
+    public abstract void run(Scratch4 terp);
+
+    public void runTyped(Scratch4 terp) {
+        run(terp);
+    }
+}
+
+// Print and discard top of stack.
+class CodePrint extends CodePrimitive {
+    public CodePrint() {
+        super("x --");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        Object tos = terp.stack.pop();
+        System.out.println(tos);
+    }
+}
+
+// Print out the contents of the stack.
+class CodePstack extends Code {
+    public CodePstack() {
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        System.out.println(terp.stack);
+    }
+}
+
+class CodeAdd extends CodePrimitive {
+    public CodeAdd() {
+        super("n n -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long tos = terp.stack.popNumber();
+        long _2os = terp.stack.popNumber();
+        terp.stack.pushNumber(ScratchValue.add(_2os, tos));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long tos = terp.stack.popNumberUnchecked();
+        long _2os = terp.stack.popNumberUnchecked();
+        terp.stack.pushNumber(ScratchValue.add(_2os, tos));
+    }
+}
+
+class CodeSub extends CodePrimitive {
+    public CodeSub() {
+        super("n n -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long tos = terp.stack.popNumber();
+        long _2os = terp.stack.popNumber();
+        terp.stack.pushNumber(ScratchValue.sub(_2os, tos));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long tos = terp.stack.popNumberUnchecked();
+        long _2os = terp.stack.popNumberUnchecked();
+        terp.stack.pushNumber(ScratchValue.sub(_2os, tos));
+    }
+}
+
+class CodeMul extends CodePrimitive {
+    public CodeMul() {
+        super("n n -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long tos = terp.stack.popNumber();
+        long _2os = terp.stack.popNumber();
+        terp.stack.pushNumber(ScratchValue.mul(_2os, tos));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long tos = terp.stack.popNumberUnchecked();
+        long _2os = terp.stack.popNumberUnchecked();
+        terp.stack.pushNumber(ScratchValue.mul(_2os, tos));
+    }
+}
+
+class CodeDiv extends CodePrimitive {
+    public CodeDiv() {
+        super("n n -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long tos = terp.stack.popNumber();
+        long _2os = terp.stack.popNumber();
+        terp.stack.pushNumber(ScratchValue.div(_2os, tos));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long tos = terp.stack.popNumberUnchecked();
+        long _2os = terp.stack.popNumberUnchecked();
+        terp.stack.pushNumber(ScratchValue.div(_2os, tos));
+    }
+}
+
+class CodeMod extends CodePrimitive {
+    public CodeMod() {
+        super("n n -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long tos = terp.stack.popNumber();
+        long _2os = terp.stack.popNumber();
+        terp.stack.pushNumber(ScratchValue.mod(_2os, tos));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long tos = terp.stack.popNumberUnchecked();
+        long _2os = terp.stack.popNumberUnchecked();
+        terp.stack.pushNumber(ScratchValue.mod(_2os, tos));
+    }
+}
+
+class CodeSqrt extends CodePrimitive {
+    public CodeSqrt() {
+        super("n -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        double tos = terp.stack.popDouble();
+        terp.stack.push(Math.sqrt(tos));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        double tos = terp.stack.popDoubleUnchecked();
+        terp.stack.push(Math.sqrt(tos));
+    }
+}
+
+// Duplicate the top of stack (TOS).
+class CodeDup extends CodePrimitive {
+    public CodeDup() {
+        super("x -- x x");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.dup();
+    }
+}
+
+// Throw away the TOS -- the opposite of DUP.
+class CodeDrop extends CodePrimitive {
+    public CodeDrop() {
+        super("x --");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.drop();
+    }
+}
+
+// Exchange positions of TOS and second item on stack (2OS).
+class CodeSwap extends CodePrimitive {
+    public CodeSwap() {
+        super("x y -- y x");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.swap();
+    }
+}
+
+// Copy 2OS on top of stack.
+class CodeOver extends CodePrimitive {
+    public CodeOver() {
+        super("x y -- x y x");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.over();
+    }
+}
+
+// Bring the 3rd item on stack to the top.
+class CodeRot extends CodePrimitive {
+    public CodeRot() {
+        super("x y z -- y z x");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.rot();
+    }
+}
+
+class CodeClear extends Code {
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.clear();
+    }
+}
+
+class CodeVarRef extends Code {
+    public long value = ScratchValue.NULL; // A ScratchValue,
+    public Object object; // with its object, if it has one.
+
+    public CodeVarRef() {
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.push(this);
+    }
+}
+
+// Read next word from input and make it a variable.
+class CodeVar extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        String var_name = terp.lexer.nextWord();
+        if (var_name == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        terp.define(var_name, new CodeVarRef());
+    }
+}
+
+// Store value of 2OS into variable given by TOS.
+class CodeStore extends CodePrimitive {
+    public CodeStore() {
+        super("x v --");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        CodeVarRef reference = (CodeVarRef)terp.stack.pop();
+        terp.stack.store(reference);
+    }
+}
+
+// Replace reference to variable on TOS with its value.
+class CodeFetch extends CodePrimitive {
+    public CodeFetch() {
+        super("v -- ?");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        CodeVarRef reference = (CodeVarRef)terp.stack.pop();
+        terp.stack.fetch(reference);
+    }
+}
+
+class CodeConstRef extends Code {
+    public final Object value;
+
+    public CodeConstRef(Object value) {
+        this.value = value;
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.push(value);
+    }
+}
+
+// Read next word from input and make it a constant with TOS as value.
+class CodeConst extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        String const_name = terp.lexer.nextWord();
+        if (const_name == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        Object const_value = terp.stack.pop();
+        terp.define(const_name, new CodeConstRef(const_value));
+    }
+}
+
+class CodeString extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        String text = terp.lexer.nextCharsUpTo('"');
+        if (text == null) {
+            throw new ScratchError("Unexpected end of input");
+        }
+        terp.allocate(2L * text.length());
+        terp.stack.push(text);
+    }
+}
+
+class CodeCComment extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        terp.lexer.skipPastWordEnding("*/");
+    }
+}
+
+class CodeComment extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        terp.lexer.skipUpTo(')');
+    }
+}
+
+class CodeCCComment extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        terp.lexer.skipUpTo('\n');
+    }
+}
+
+// Push a number compiled into a definition.
+class CodeNumber extends Code {
+    public final double value;
+    private final long number; // VALUE as a ScratchValue.
+
+    public CodeNumber(double value) {
+        this.value = value;
+        number = ScratchValue.number(value);
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.pushNumber(number);
+    }
+}
+
+// Push any other literal (string, list) compiled into a definition.
+class CodeLiteral extends Code {
+    public final Object value;
+
+    public CodeLiteral(Object value) {
+        this.value = value;
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.push(value);
+    }
+}
+
+class CodeWordRef extends Code {
+    public final Code[] code;
+    public final int frame_size; // Slots of loop state in terp.frame.
+    public int locals; // Of those, the first ones that hold locals.
+    public int symbol = -1; // Name of the word, -1 for anonymous lists.
+    private int calls;
+    private Code compiled;
+
+    public CodeWordRef(Code[] code, int frame_size) {
+        this.code = code;
+        this.frame_size = frame_size;
+        enters = true;
+    }
+
+    // Resolve a list of words and literals into threaded code. Equal
+    // numbers share one literal.
+    public static Code[] thread(ScratchStack list) {
+        Code[] code = new Code[list.size()];
+        HashMap<Object, Code> literals = new HashMap<>();
+        for (int i = 0; i < code.length; i++) {
+            switch (list.tagAt(i)) {
+            case ScratchStack.CODE:
+            case ScratchStack.VAR:
+                code[i] = (Code)list.get(i);
+                break;
+            case ScratchStack.NUMBER:
+                code[i] = literals.computeIfAbsent(list.get(i), value -> new CodeNumber((double)value));
+                break;
+            default:
+                code[i] = new CodeLiteral(list.get(i));
+                break;
+            }
+        }
+        return code;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stackless) {
+            terp.execute(this);
+            return;
+        }
+        if (compiled != null) {
+            compiled.call(terp);
+            return;
+        }
+        if (++calls == terp.jit_threshold) {
+            compiled = ScratchJit.compile(this);
+            if (compiled != null) {
+                compiled.consumes = consumes;
+                compiled.produces = produces;
+                if (symbol >= 0) {
+                    terp.replace(symbol, this, compiled);
+                }
+                compiled.call(terp);
+                return;
+            }
+        }
+        long[] frame = terp.frame;
+        Object[] frame_objects = terp.frame_objects;
+        if (frame_size > 0) {
+            terp.frame = new long[frame_size];
+        }
+        if (locals > 0) {
+            terp.frame_objects = new Object[locals];
+        }
+        run(code, terp, 0);
+        terp.frame = frame;
+        terp.frame_objects = frame_objects;
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        return this;
+    }
+
+    public static void run(Code[] code, Scratch4 terp, int ip) {
+        while (ip < code.length) {
+            ip = code[ip].exec(terp, ip);
+        }
+    }
+}
+
+// A word compiled by one of the engines from WORD. In stackless runs
+// execute() calls WORD in its place, since it counts steps only in the
+// threaded code it runs itself.
+abstract class CodeCompiled extends Code {
+    public CodeWordRef word;
+
+    public CodeCompiled() {
+        enters = true;
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (terp.stackless) {
+            return word;
+        }
+        call(terp);
+        return null;
+    }
+}
+
+// Base of the classes generated by ScratchJit, which keeps the code they
+// were generated from.
+abstract class CodeJitted extends CodeCompiled {
+    public final Code[] code;
+
+    public CodeJitted(Code[] code) {
+        this.code = code;
+    }
+}
+
+// Compile threaded code into a hidden class whose call() invokes each word
+// in turn, so every call site is monomorphic and HotSpot can inline it.
+// Words that override exec() are called through it. Branches become JVM
+// jumps; any other word that does not fall through to the next one leaves
+// the rest of the code to CodeWordRef.run().
+class ScratchJit {
+    private static final int MAX_WORDS = 800; // Keeps jump offsets in 16 bits.
+
+    private final ArrayList<Object> pool = new ArrayList<>();
+    private final HashMap<String, Integer> pool_index = new HashMap<>();
+
+    public static CodeJitted compile(CodeWordRef word) {
+        Code[] code = word.code;
+        if (code.length > MAX_WORDS) {
+            return null;
+        }
+        try {
+            byte[] bytes = new ScratchJit().generate(code, word.frame_size, word.locals);
+            Class<?> cls = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            CodeJitted compiled = (CodeJitted)cls.getDeclaredConstructor(Code[].class).newInstance((Object)code.clone());
+            compiled.word = word;
+            return compiled;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public static boolean overridesExec(Class<?> cls) {
+        try {
+            return cls.getMethod("exec", Scratch4.class, int.class).getDeclaringClass() != Code.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Classes that generated code may name; others are called as Code.
+    private static boolean isNameable(Class<?> cls) {
+        return !cls.isHidden()
+            && cls.getClassLoader() == Code.class.getClassLoader()
+            && cls.getPackageName().equals(Code.class.getPackageName());
+    }
+
+    private int entry(String key, Object value) {
+        Integer index = pool_index.get(key);
+        if (index == null) {
+            pool.add(value);
+            index = pool.size(); // Constant pool is 1-based.
+            pool_index.put(key, index);
+        }
+        return index;
+    }
+
+    private int utf8(String text) {
+        return entry("U" + text, text);
+    }
+
+    private int classRef(String name) {
+        return entry("C" + name, new int[] {7, utf8(name)});
+    }
+
+    private int memberRef(int tag, String owner, String name, String type) {
+        int name_and_type = entry("N" + name + ":" + type, new int[] {12, utf8(name), utf8(type)});
+        return entry(tag + owner + "." + name + ":" + type, new int[] {tag, classRef(owner), name_and_type});
+    }
+
+    private static String internalName(Class<?> cls) {
+        return cls.getName().replace('.', '/');
+    }
+
+    private static void pushInt(DataOutputStream out, int value) throws IOException {
+        if (value <= 5) {
+            out.writeByte(0x03 + value); // iconst_<n>
+        } else if (value <= Byte.MAX_VALUE) {
+            out.writeByte(0x10); // bipush
+            out.writeByte(value);
+        } else {
+            out.writeByte(0x11); // sipush
+            out.writeShort(value);
+        }
+    }
+
+    // Offsets of 16-bit jump operands in OUT, to be patched with the start of
+    // the code for a word index.
+    private static class Fixup {
+        final int opcode;
+        final int operand;
+        final int target;
+
+        Fixup(int opcode, int operand, int target) {
+            this.opcode = opcode;
+            this.operand = operand;
+            this.target = target;
+        }
+    }
+
+    private static void jump(DataOutputStream out, int opcode, int target, ArrayList<Fixup> fixups)
+            throws IOException {
+        fixups.add(new Fixup(out.size(), out.size() + 1, target));
+        out.writeByte(opcode);
+        out.writeShort(0);
+    }
+
+    private byte[] generate(Code[] code, int frame_size, int locals) {
+        String self = "scratch/CodeJit";
+        String base = internalName(Code.class);
+        String parent = internalName(CodeJitted.class);
+        String terp = "L" + internalName(Scratch4.class) + ";";
+        String array = "[L" + base + ";";
+        String run = internalName(CodeWordRef.class);
+        try {
+            ByteArrayOutputStream init_bytes = new ByteArrayOutputStream();
+            DataOutputStream init = new DataOutputStream(init_bytes);
+            init.writeByte(0x2a); // aload_0
+            init.writeByte(0x2b); // aload_1
+            init.writeByte(0xb7); // invokespecial
+            init.writeShort(memberRef(10, parent, "<init>", "(" + array + ")V"));
+            init.writeByte(0xb1); // return
+
+            ByteArrayOutputStream call_bytes = new ByteArrayOutputStream();
+            DataOutputStream call = new DataOutputStream(call_bytes);
+            int frame = memberRef(9, internalName(Scratch4.class), "frame", "[J");
+            if (frame_size > 0) {
+                call.writeByte(0x2b); // aload_1
+                call.writeByte(0xb4); // getfield
+                call.writeShort(frame);
+                call.writeByte(0x3a); // astore 4
+                call.writeByte(4);
+                call.writeByte(0x2b); // aload_1
+                pushInt(call, frame_size);
+                call.writeByte(0xbc); // newarray long
+                call.writeByte(11);
+                call.writeByte(0xb5); // putfield
+                call.writeShort(frame);
+            }
+            int frame_objects = memberRef(9, internalName(Scratch4.class), "frame_objects", "[Ljava/lang/Object;");
+            if (locals > 0) {
+                call.writeByte(0x2b); // aload_1
+                call.writeByte(0xb4); // getfield
+                call.writeShort(frame_objects);
+                call.writeByte(0x3a); // astore 5
+                call.writeByte(5);
+                call.writeByte(0x2b); // aload_1
+                pushInt(call, locals);
+                call.writeByte(0xbd); // anewarray
+                call.writeShort(classRef("java/lang/Object"));
+                call.writeByte(0xb5); // putfield
+                call.writeShort(frame_objects);
+            }
+            call.writeByte(0x2a); // aload_0
+            call.writeByte(0xb4); // getfield
+            call.writeShort(memberRef(9, parent, "code", array));
+            call.writeByte(0x4d); // astore_2
+            int[] starts = new int[code.length + 1];
+            ArrayList<Fixup> fixups = new ArrayList<>();
+            for (int i = 0; i < code.length; i++) {
+                Class<?> cls = code[i].getClass();
+                starts[i] = call.size();
+                call.writeByte(0x2c); // aload_2
+                pushInt(call, i);
+                call.writeByte(0x32); // aaload
+                if (overridesExec(cls) && !(code[i] instanceof CodeUnchecked)) {
+                    call.writeByte(0x2b); // aload_1
+                    pushInt(call, i);
+                    call.writeByte(0xb6); // invokevirtual
+                    call.writeShort(memberRef(10, base, "exec", "(" + terp + "I)I"));
+                    call.writeByte(0x3e); // istore_3
+                    if (code[i] instanceof CodeBranch) {
+                        int target = ((CodeBranch)code[i]).target;
+                        call.writeByte(0x1d); // iload_3
+                        pushInt(call, target);
+                        jump(call, 0x9f, target, fixups); // if_icmpeq
+                    }
+                    call.writeByte(0x1d); // iload_3
+                    pushInt(call, i + 1);
+                    jump(call, 0x9f, i + 1, fixups); // if_icmpeq
+                    call.writeByte(0x2c); // aload_2
+                    call.writeByte(0x2b); // aload_1
+                    call.writeByte(0x1d); // iload_3
+                    call.writeByte(0xb8); // invokestatic
+                    call.writeShort(memberRef(10, run, "run", "(" + array + terp + "I)V"));
+                    jump(call, 0xa7, code.length, fixups); // goto
+                } else {
+                    String type = base;
+                    String method = "call";
+                    if (code[i] instanceof CodeUnchecked) {
+                        // Straight to the word's run(), past its check.
+                        type = internalName(CodePrimitive.class);
+                        method = code[i] instanceof CodeTyped ? "runTyped" : "run";
+                        cls = ((CodeUnchecked)code[i]).word.getClass();
+                        String unchecked = internalName(CodeUnchecked.class);
+                        call.writeByte(0xc0); // checkcast
+                        call.writeShort(classRef(unchecked));
+                        call.writeByte(0xb4); // getfield
+                        call.writeShort(memberRef(9, unchecked, "word", "L" + type + ";"));
+                    }
+                    String owner = isNameable(cls) ? internalName(cls) : type;
+                    if (!owner.equals(type)) {
+                        call.writeByte(0xc0); // checkcast
+                        call.writeShort(classRef(owner));
+                    }
+                    call.writeByte(0x2b); // aload_1
+                    call.writeByte(0xb6); // invokevirtual
+                    call.writeShort(memberRef(10, owner, method, "(" + terp + ")V"));
+                }
+            }
+            starts[code.length] = call.size();
+            if (frame_size > 0) {
+                call.writeByte(0x2b); // aload_1
+                call.writeByte(0x19); // aload 4
+                call.writeByte(4);
+                call.writeByte(0xb5); // putfield
+                call.writeShort(frame);
+            }
+            if (locals > 0) {
+                call.writeByte(0x2b); // aload_1
+                call.writeByte(0x19); // aload 5
+                call.writeByte(5);
+                call.writeByte(0xb5); // putfield
+                call.writeShort(frame_objects);
+            }
+            call.writeByte(0xb1); // return
+            byte[] call_code = call_bytes.toByteArray();
+            for (Fixup fixup : fixups) {
+                int offset = starts[Math.min(fixup.target, code.length)] - fixup.opcode;
+                call_code[fixup.operand] = (byte)(offset >> 8);
+                call_code[fixup.operand + 1] = (byte)offset;
+            }
+
+            int this_class = classRef(self);
+            int super_class = classRef(parent);
+            int init_name = utf8("<init>");
+            int init_type = utf8("(" + array + ")V");
+            int call_name = utf8("call");
+            int call_type = utf8("(" + terp + ")V");
+            int code_attr = utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49); // Pre-StackMapTable version: branches need no frames.
+            out.writeShort(pool.size() + 1);
+            for (Object item : pool) {
+                if (item instanceof String) {
+                    out.writeByte(1);
+                    out.writeUTF((String)item);
+                } else {
+                    int[] ref = (int[])item;
+                    out.writeByte(ref[0]);
+                    for (int j = 1; j < ref.length; j++) {
+                        out.writeShort(ref[j]);
+                    }
+                }
+            }
+            out.writeShort(0x0030); // final super
+            out.writeShort(this_class);
+            out.writeShort(super_class);
+            out.writeShort(0); // Interfaces.
+            out.writeShort(0); // Fields.
+            out.writeShort(2); // Methods.
+            writeMethod(out, init_name, init_type, code_attr, 2, 2, init_bytes.toByteArray());
+            writeMethod(out, call_name, call_type, code_attr, 3, 6, call_code);
+            out.writeShort(0); // Attributes.
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int code_attr,
+            int max_stack, int max_locals, byte[] body) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(code_attr);
+        out.writeInt(2 + 2 + 4 + body.length + 2 + 2);
+        out.writeShort(max_stack);
+        out.writeShort(max_locals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0); // Exception table.
+        out.writeShort(0); // Attributes.
+    }
+}
+
+// Compiled code translated into a stream of opcodes, each followed by its
+// operands, that one loop runs with a switch over all the built-in words
+// instead of a virtual call per word. Words it does not know, such as
+// primitives added from Java, are called through the constant pool. The
+// opcodes keep what ScratchOptimizer proved: a checked word is CHECK and
+// the unchecked opcode, and a failed CodeCheck leaves the rest of the code
+// to it.
+class CodeSwitch extends CodeCompiled {
+    static final int CHECK = 0; // depth
+    static final int GUARD = 1; // depth, index of the CodeCheck in code
+    static final int CALL = 2; // pool index
+    static final int EXEC = 3; // pool index, index of the word in code
+    static final int NUMBER = 4; // numbers index
+    static final int PUSH = 5; // pool index
+    static final int TRUE = 6;
+    static final int FALSE = 7;
+    static final int PRINT = 8;
+    static final int ADD = 9;
+    static final int SUB = 10;
+    static final int MUL = 11;
+    static final int DIV = 12;
+    static final int MOD = 13;
+    static final int SQRT = 14;
+    static final int DUP = 15;
+    static final int DROP = 16;
+    static final int SWAP = 17;
+    static final int OVER = 18;
+    static final int ROT = 19;
+    static final int STORE = 20;
+    static final int FETCH = 21;
+    static final int LENGTH = 22;
+    static final int ITEM = 23;
+    static final int AND = 24;
+    static final int OR = 25;
+    static final int NOT = 26;
+    static final int LESS = 27;
+    static final int LE = 28;
+    static final int EQUAL = 29;
+    static final int GE = 30;
+    static final int GREATER = 31;
+    static final int SQUARE = 32;
+    static final int NIP = 33;
+    static final int ADD_IMMEDIATE = 34; // numbers index
+    static final int VAR_ADD = 35; // pool index, numbers index
+    static final int JUMP_IF = 36; // 1 to jump on true or 0 on false, target
+    static final int BREAK_TO = 37; // target
+    static final int LOOP_ENTER = 38; // slot
+    static final int LOOP_BACK = 39; // target
+    static final int LOOP_EXIT = 40; // slot
+    static final int TIMES_START = 41; // slot
+    static final int TIMES_NEXT = 42; // slot, numbers index, target
+    static final int VAR_FETCH = 43; // pool index
+    static final int VAR_STORE = 44; // pool index
+    static final int LOCAL_FETCH = 45; // slot
+    static final int LOCAL_STORE = 46; // slot
+
+    // Words without operands, by exact class.
+    private static final HashMap<Class<?>, Integer> OPCODES = new HashMap<>();
+
+    static {
+        Object[] opcodes = {
+            CodeTrue.class, TRUE, CodeFalse.class, FALSE, CodePrint.class, PRINT,
+            CodeAdd.class, ADD, CodeSub.class, SUB, CodeMul.class, MUL, CodeDiv.class, DIV,
+            CodeMod.class, MOD, CodeSqrt.class, SQRT, CodeDup.class, DUP, CodeDrop.class, DROP,
+            CodeSwap.class, SWAP, CodeOver.class, OVER, CodeRot.class, ROT,
+            CodeStore.class, STORE, CodeFetch.class, FETCH, CodeLength.class, LENGTH, CodeItem.class, ITEM,
+            CodeAnd.class, AND, CodeOr.class, OR, CodeNot.class, NOT,
+            CodeLess.class, LESS, CodeLE.class, LE, CodeEqual.class, EQUAL, CodeGE.class, GE,
+            CodeGreater.class, GREATER, CodeSquare.class, SQUARE, CodeNip.class, NIP,
+        };
+        for (int i = 0; i < opcodes.length; i += 2) {
+            OPCODES.put((Class<?>)opcodes[i], (Integer)opcodes[i + 1]);
+        }
+    }
+
+    public final Code[] code; // What the opcodes were translated from.
+    private final int frame_size;
+    private final int locals;
+    private final int[] ops;
+    private final int[] starts; // Of the opcodes for each word in code.
+    private final Object[] pool;
+    private final long[] numbers; // As ScratchValues.
+
+    private CodeSwitch(Code[] code, int frame_size, int locals, int[] ops, int[] starts, Object[] pool,
+            long[] numbers) {
+        this.code = code;
+        this.frame_size = frame_size;
+        this.locals = locals;
+        this.ops = ops;
+        this.starts = starts;
+        this.pool = pool;
+        this.numbers = numbers;
+    }
+
+    public static CodeSwitch compile(CodeWordRef word) {
+        Code[] code = word.code;
+        ArrayList<Integer> ops = new ArrayList<>();
+        int[] starts = new int[code.length + 1];
+        ArrayList<Integer> targets = new ArrayList<>(); // Operands to patch.
+        ArrayList<Object> pool = new ArrayList<>();
+        ArrayList<Long> numbers = new ArrayList<>();
+        for (int i = 0; i < code.length; i++) {
+            starts[i] = ops.size();
+            Code inner = code[i];
+            boolean checked = true;
+            if (inner.getClass() == CodeUnchecked.class || inner.getClass() == CodeTyped.class) {
+                inner = ((CodeUnchecked)inner).word;
+                checked = false;
+            }
+            Integer opcode = OPCODES.get(inner.getClass());
+            if (checked && inner.consumes > 0 && (opcode != null || inner.getClass() == CodeAddImmediate.class
+                    || inner.getClass() == CodeVarStore.class || inner.getClass() == CodeLocalStore.class)) {
+                ops.add(CHECK);
+                ops.add(inner.consumes);
+            }
+            if (opcode != null) {
+                ops.add(opcode);
+            } else if (inner.getClass() == CodeNumber.class) {
+                ops.add(NUMBER);
+                ops.add(numbers.size());
+                numbers.add(ScratchValue.number(((CodeNumber)inner).value));
+            } else if (inner.getClass() == CodeLiteral.class || inner.getClass() == CodeConstRef.class
+                    || inner.getClass() == CodeVarRef.class) {
+                ops.add(PUSH);
+                ops.add(pool.size());
+                pool.add(inner instanceof CodeLiteral ? ((CodeLiteral)inner).value
+                    : inner instanceof CodeConstRef ? ((CodeConstRef)inner).value : inner);
+            } else if (inner.getClass() == CodeAddImmediate.class) {
+                ops.add(ADD_IMMEDIATE);
+                ops.add(numbers.size());
+                numbers.add(ScratchValue.number(((CodeAddImmediate)inner).n));
+            } else if (inner.getClass() == CodeVarFetch.class || inner.getClass() == CodeVarStore.class) {
+                ops.add(inner instanceof CodeVarFetch ? VAR_FETCH : VAR_STORE);
+                ops.add(pool.size());
+                pool.add(inner instanceof CodeVarFetch ? ((CodeVarFetch)inner).reference
+                    : ((CodeVarStore)inner).reference);
+            } else if (inner.getClass() == CodeLocalFetch.class || inner.getClass() == CodeLocalStore.class) {
+                ops.add(inner instanceof CodeLocalFetch ? LOCAL_FETCH : LOCAL_STORE);
+                ops.add(inner instanceof CodeLocalFetch ? ((CodeLocalFetch)inner).slot
+                    : ((CodeLocalStore)inner).slot);
+            } else if (inner.getClass() == CodeVarAdd.class) {
+                ops.add(VAR_ADD);
+                ops.add(pool.size());
+                pool.add(((CodeVarAdd)inner).reference);
+                ops.add(numbers.size());
+                numbers.add(ScratchValue.number(((CodeVarAdd)inner).n));
+            } else if (inner.getClass() == CodeCheck.class) {
+                ops.add(GUARD);
+                ops.add(((CodeCheck)inner).depth);
+                ops.add(i);
+            } else if (inner.getClass() == CodeJumpIf.class) {
+                ops.add(JUMP_IF);
+                ops.add(((CodeJumpIf)inner).when ? 1 : 0);
+                targets.add(ops.size());
+                ops.add(((CodeBranch)inner).target);
+            } else if (inner.getClass() == CodeBreakTo.class || inner.getClass() == CodeLoopBack.class) {
+                ops.add(inner instanceof CodeBreakTo ? BREAK_TO : LOOP_BACK);
+                targets.add(ops.size());
+                ops.add(((CodeBranch)inner).target);
+            } else if (inner.getClass() == CodeTimesNext.class) {
+                ops.add(TIMES_NEXT);
+                ops.add(((CodeTimesNext)inner).slot);
+                ops.add(numbers.size());
+                numbers.add(ScratchValue.number(((CodeTimesNext)inner).count));
+                targets.add(ops.size());
+                ops.add(((CodeBranch)inner).target);
+            } else if (inner.getClass() == CodeLoopEnter.class) {
+                ops.add(LOOP_ENTER);
+                ops.add(((CodeLoopEnter)inner).slot);
+            } else if (inner.getClass() == CodeLoopExit.class) {
+                ops.add(LOOP_EXIT);
+                ops.add(((CodeLoopExit)inner).slot);
+            } else if (inner.getClass() == CodeTimesStart.class) {
+                ops.add(TIMES_START);
+                ops.add(((CodeTimesStart)inner).slot);
+            } else if (!(code[i] instanceof CodeUnchecked) && ScratchJit.overridesExec(code[i].getClass())) {
+                ops.add(EXEC);
+                ops.add(pool.size());
+                pool.add(code[i]);
+                ops.add(i);
+            } else {
+                ops.add(CALL);
+                ops.add(pool.size());
+                pool.add(code[i]);
+            }
+        }
+        starts[code.length] = ops.size();
+        int[] op_array = new int[ops.size()];
+        for (int i = 0; i < op_array.length; i++) {
+            op_array[i] = ops.get(i);
+        }
+        for (int operand : targets) {
+            op_array[operand] = starts[op_array[operand]];
+        }
+        long[] number_array = new long[numbers.size()];
+        for (int i = 0; i < number_array.length; i++) {
+            number_array[i] = numbers.get(i);
+        }
+        CodeSwitch compiled = new CodeSwitch(code, word.frame_size, word.locals, op_array, starts, pool.toArray(), number_array);
+        compiled.consumes = word.consumes;
+        compiled.produces = word.produces;
+        compiled.word = word;
+        return compiled;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        long[] frame = terp.frame;
+        Object[] frame_objects = terp.frame_objects;
+        if (frame_size > 0) {
+            terp.frame = new long[frame_size];
+        }
+        if (locals > 0) {
+            terp.frame_objects = new Object[locals];
+        }
+        run(terp);
+        terp.frame = frame;
+        terp.frame_objects = frame_objects;
+    }
+
+    private void run(Scratch4 terp) {
+        int[] ops = this.ops;
+        long[] numbers = this.numbers;
+        ScratchStack stack = terp.stack;
+        int pc = 0;
+        while (pc < ops.length) {
+            switch (ops[pc]) {
+            case CHECK:
+                if (stack.size() < ops[pc + 1]) {
+                    throw new RuntimeException("Not enough items on stack");
+                }
+                pc += 2;
+                break;
+            case GUARD:
+                if (stack.size() < ops[pc + 1]) {
+                    code[ops[pc + 2]].exec(terp, ops[pc + 2]); // Runs the rest checked.
+                    return;
+                }
+                pc += 3;
+                break;
+            case CALL:
+                ((Code)pool[ops[pc + 1]]).call(terp);
+                stack = terp.stack;
+                pc += 2;
+                break;
+            case EXEC: {
+                int next = ((Code)pool[ops[pc + 1]]).exec(terp, ops[pc + 2]);
+                stack = terp.stack;
+                if (next >= code.length) {
+                    return;
+                }
+                pc = starts[next];
+                break;
+            }
+            case NUMBER:
+                stack.pushNumber(numbers[ops[pc + 1]]);
+                pc += 2;
+                break;
+            case PUSH:
+                stack.push(pool[ops[pc + 1]]);
+                pc += 2;
+                break;
+            case TRUE:
+                stack.push(true);
+                pc++;
+                break;
+            case FALSE:
+                stack.push(false);
+                pc++;
+                break;
+            case PRINT:
+                System.out.println(stack.pop());
+                pc++;
+                break;
+            case ADD: {
+                long tos = stack.popNumber();
+                long _2os = stack.popNumber();
+                stack.pushNumber(ScratchValue.add(_2os, tos));
+                pc++;
+                break;
+            }
+            case SUB: {
+                long tos = stack.popNumber();
+                long _2os = stack.popNumber();
+                stack.pushNumber(ScratchValue.sub(_2os, tos));
+                pc++;
+                break;
+            }
+            case MUL: {
+                long tos = stack.popNumber();
+                long _2os = stack.popNumber();
+                stack.pushNumber(ScratchValue.mul(_2os, tos));
+                pc++;
+                break;
+            }
+            case DIV: {
+                long tos = stack.popNumber();
+                long _2os = stack.popNumber();
+                stack.pushNumber(ScratchValue.div(_2os, tos));
+                pc++;
+                break;
+            }
+            case MOD: {
+                long tos = stack.popNumber();
+                long _2os = stack.popNumber();
+                stack.pushNumber(ScratchValue.mod(_2os, tos));
+                pc++;
+                break;
+            }
+            case SQRT:
+                stack.push(Math.sqrt(stack.popDouble()));
+                pc++;
+                break;
+            case DUP:
+                stack.dup();
+                pc++;
+                break;
+            case DROP:
+                stack.drop();
+                pc++;
+                break;
+            case SWAP:
+                stack.swap();
+                pc++;
+                break;
+            case OVER:
+                stack.over();
+                pc++;
+                break;
+            case ROT:
+                stack.rot();
+                pc++;
+                break;
+            case STORE: {
+                CodeVarRef reference = (CodeVarRef)stack.pop();
+                stack.store(reference);
+                pc++;
+                break;
+            }
+            case FETCH:
+                stack.fetch((CodeVarRef)stack.pop());
+                pc++;
+                break;
+            case LENGTH: {
+                Object list = stack.pop();
+                if (!(list instanceof ScratchStack)) {
+                    throw new RuntimeException("List expected");
+                }
+                stack.pushNumber(ScratchValue.integer(((ScratchStack)list).size()));
+                pc++;
+                break;
+            }
+            case ITEM: {
+                long index = stack.popNumber();
+                Object list = stack.pop();
+                if (!(list instanceof ScratchStack)) {
+                    throw new RuntimeException("Object expected");
+                }
+                stack.pushItem((ScratchStack)list, ScratchValue.asInt(index));
+                pc++;
+                break;
+            }
+            case AND: {
+                boolean term2 = stack.popBoolean();
+                boolean term1 = stack.popBoolean();
+                stack.push(term1 && term2);
+                pc++;
+                break;
+            }
+            case OR: {
+                boolean term2 = stack.popBoolean();
+                boolean term1 = stack.popBoolean();
+                stack.push(term1 || term2);
+                pc++;
+                break;
+            }
+            case NOT:
+                stack.push(!stack.popBoolean());
+                pc++;
+                break;
+            case LESS: {
+                long term2 = stack.popNumber();
+                long term1 = stack.popNumber();
+                stack.push(ScratchValue.less(term1, term2));
+                pc++;
+                break;
+            }
+            case LE: {
+                long term2 = stack.popNumber();
+                long term1 = stack.popNumber();
+                stack.push(ScratchValue.lessOrEqual(term1, term2));
+                pc++;
+                break;
+            }
+            case EQUAL: {
+                long term2 = stack.popNumber();
+                long term1 = stack.popNumber();
+                stack.push(ScratchValue.equal(term1, term2));
+                pc++;
+                break;
+            }
+            case GE: {
+                long term2 = stack.popNumber();
+                long term1 = stack.popNumber();
+                stack.push(ScratchValue.lessOrEqual(term2, term1));
+                pc++;
+                break;
+            }
+            case GREATER: {
+                long term2 = stack.popNumber();
+                long term1 = stack.popNumber();
+                stack.push(ScratchValue.less(term2, term1));
+                pc++;
+                break;
+            }
+            case SQUARE: {
+                long tos = stack.popNumber();
+                stack.pushNumber(ScratchValue.mul(tos, tos));
+                pc++;
+                break;
+            }
+            case NIP:
+                stack.nip();
+                pc++;
+                break;
+            case ADD_IMMEDIATE:
+                stack.pushNumber(ScratchValue.add(stack.popNumber(), numbers[ops[pc + 1]]));
+                pc += 2;
+                break;
+            case VAR_ADD: {
+                CodeVarRef reference = (CodeVarRef)pool[ops[pc + 1]];
+                if (!ScratchValue.isNumber(reference.value)) {
+                    throw new RuntimeException("Number expected");
+                }
+                reference.value = ScratchValue.add(reference.value, numbers[ops[pc + 2]]);
+                pc += 3;
+                break;
+            }
+            case VAR_FETCH:
+                stack.fetch((CodeVarRef)pool[ops[pc + 1]]);
+                pc += 2;
+                break;
+            case VAR_STORE:
+                stack.store((CodeVarRef)pool[ops[pc + 1]]);
+                pc += 2;
+                break;
+            case LOCAL_FETCH:
+                stack.fetchSlot(terp.frame, terp.frame_objects, ops[pc + 1]);
+                pc += 2;
+                break;
+            case LOCAL_STORE:
+                stack.storeSlot(terp.frame, terp.frame_objects, ops[pc + 1]);
+                pc += 2;
+                break;
+            case JUMP_IF: {
+                if (stack.size() < 1) {
+                    throw new RuntimeException("Not enough items on stack");
+                }
+                boolean cond = stack.popBoolean();
+                pc = cond == (ops[pc + 1] != 0) ? ops[pc + 2] : pc + 3;
+                break;
+            }
+            case BREAK_TO:
+                if (stack.size() < 1) {
+                    throw new RuntimeException("Not enough items on stack");
+                }
+                if (stack.popBoolean()) {
+                    terp.break_state = true;
+                    pc = ops[pc + 1];
+                } else {
+                    pc += 2;
+                }
+                break;
+            case LOOP_ENTER:
+                terp.frame[ops[pc + 1]] = terp.break_state ? 1 : 0;
+                terp.break_state = false;
+                pc += 2;
+                break;
+            case LOOP_BACK:
+                pc = terp.break_state ? pc + 2 : ops[pc + 1];
+                break;
+            case LOOP_EXIT:
+                terp.break_state = terp.frame[ops[pc + 1]] != 0;
+                pc += 2;
+                break;
+            case TIMES_START:
+                terp.frame[ops[pc + 1]] = 0;
+                pc += 2;
+                break;
+            case TIMES_NEXT: {
+                int slot = ops[pc + 1];
+                if (terp.frame[slot] < ScratchValue.asDouble(numbers[ops[pc + 2]])) {
+                    terp.frame[slot]++;
+                    pc += 4;
+                } else {
+                    pc = ops[pc + 3];
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Bad opcode " + ops[pc]);
+            }
+        }
+    }
+}
+
+// Compiled code as a tree of nodes: the root runs its body like threaded
+// code, and each primitive that has a typed version sits in a node of its
+// own that rewrites itself from what it sees on the stack. A node that
+// first finds the types the word takes becomes a CodeNodeTyped, which
+// runs the word unchecked for as long as they stay the same; otherwise,
+// or once they change, it becomes a CodeNodeGeneric for good.
+class CodeNodes extends CodeCompiled {
+    public final Code[] code; // What the nodes were made from.
+    private final Code[] body;
+    private final int frame_size;
+    private final int locals;
+
+    private CodeNodes(Code[] code, Code[] body, int frame_size, int locals) {
+        this.code = code;
+        this.body = body;
+        this.frame_size = frame_size;
+        this.locals = locals;
+    }
+
+    public static CodeNodes compile(CodeWordRef word) {
+        Code[] code = word.code;
+        Code[] body = code.clone();
+        for (int i = 0; i < body.length; i++) {
+            if (code[i] instanceof CodePrimitive && CodeNode.specializes((CodePrimitive)code[i])) {
+                body[i] = new CodeNodeUninitialized(body, i, (CodePrimitive)code[i], true);
+            } else if (code[i].getClass() == CodeUnchecked.class
+                    && CodeNode.specializes(((CodeUnchecked)code[i]).word)) {
+                body[i] = new CodeNodeUninitialized(body, i, ((CodeUnchecked)code[i]).word, false);
+            }
+        }
+        CodeNodes compiled = new CodeNodes(code, body, word.frame_size, word.locals);
+        compiled.consumes = word.consumes;
+        compiled.produces = word.produces;
+        compiled.word = word;
+        return compiled;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        long[] frame = terp.frame;
+        Object[] frame_objects = terp.frame_objects;
+        if (frame_size > 0) {
+            terp.frame = new long[frame_size];
+        }
+        if (locals > 0) {
+            terp.frame_objects = new Object[locals];
+        }
+        CodeWordRef.run(body, terp, 0);
+        terp.frame = frame;
+        terp.frame_objects = frame_objects;
+    }
+}
+
+// A primitive in the body of a CodeNodes. CHECKED if the stack may hold
+// too few items for it.
+abstract class CodeNode extends Code {
+    protected final Code[] body;
+    protected final int index;
+    protected final CodePrimitive word;
+    protected final boolean checked;
+
+    public CodeNode(Code[] body, int index, CodePrimitive word, boolean checked) {
+        this.body = body;
+        this.index = index;
+        this.word = word;
+        this.checked = checked;
+        consumes = word.consumes;
+        produces = word.produces;
+    }
+
+    // Words with a typed version worth specializing to.
+    public static boolean specializes(CodePrimitive word) {
+        try {
+            return word.getClass().getMethod("runTyped", Scratch4.class).getDeclaringClass() != CodePrimitive.class;
+        } catch (NoSuchMethodException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Whether the stack holds items of the types the word takes.
+    protected boolean typed(ScratchStack stack) {
+        int base = stack.size() - word.takes.length;
+        if (base < 0) {
+            return false;
+        }
+        for (int i = 0; i < word.takes.length; i++) {
+            if (word.takes[i] != CodePrimitive.ANY && stack.tagAt(base + i) != word.takes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Take the place of this node in the body.
+    protected Code replace(CodeNode node) {
+        body[index] = node;
+        return node;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        throw new IllegalStateException("Node outside compiled code");
+    }
+}
+
+class CodeNodeUninitialized extends CodeNode {
+    public CodeNodeUninitialized(Code[] body, int index, CodePrimitive word, boolean checked) {
+        super(body, index, word, checked);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (typed(terp.stack)) {
+            return replace(new CodeNodeTyped(body, index, word, checked)).exec(terp, ip);
+        }
+        return replace(new CodeNodeGeneric(body, index, word, checked)).exec(terp, ip);
+    }
+}
+
+class CodeNodeTyped extends CodeNode {
+    public CodeNodeTyped(Code[] body, int index, CodePrimitive word, boolean checked) {
+        super(body, index, word, checked);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (!typed(terp.stack)) {
+            return replace(new CodeNodeGeneric(body, index, word, checked)).exec(terp, ip);
+        }
+        word.runTyped(terp);
+        return ip + 1;
+    }
+}
+
+class CodeNodeGeneric extends CodeNode {
+    public CodeNodeGeneric(Code[] body, int index, CodePrimitive word, boolean checked) {
+        super(body, index, word, checked);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (checked) {
+            word.call(terp);
+        } else {
+            word.run(terp);
+        }
+        return ip + 1;
+    }
+}
+
+// Compiles the contents of a definition: inlines small words, folds pure
+// words applied to constants, turns lists run by IFTRUE, IFFALSE, LOOP,
+// WHILE and TIMES into branches within the same code, fuses common
+// sequences of words into superinstructions, and finally replaces the
+// underflow checks it can prove unnecessary.
+class ScratchOptimizer {
+    // Words without side effects, by the number of items they take.
+    private static final HashMap<Class<?>, Integer> PURE = new HashMap<>();
+
+    static {
+        Class<?>[] unary = {
+            CodeSqrt.class, CodeDup.class, CodeDrop.class, CodeNot.class,
+        };
+        Class<?>[] binary = {
+            CodeAdd.class, CodeSub.class, CodeMul.class, CodeDiv.class, CodeMod.class,
+            CodeSwap.class, CodeOver.class, CodeAnd.class, CodeOr.class,
+            CodeLess.class, CodeLE.class, CodeEqual.class, CodeGE.class, CodeGreater.class,
+        };
+        for (Class<?> cls : unary) {
+            PURE.put(cls, 1);
+        }
+        for (Class<?> cls : binary) {
+            PURE.put(cls, 2);
+        }
+        PURE.put(CodeRot.class, 3);
+    }
+
+    // Where ?CONTINUE and ?BREAK go within a compiled loop or IF body:
+    // NEXT starts the next pass, BODY starts the body over and EXIT leaves.
+    // BODY is NEXT unless something runs before the body on each pass.
+    private static class Block {
+        final CodeLabel next = new CodeLabel();
+        final CodeLabel exit = new CodeLabel();
+        CodeLabel body = next;
+    }
+
+    private final Scratch4 terp;
+    private final boolean strict;
+    private int frame_size;
+    private int consumes = -1; // Stack effect of the code, found by verify().
+    private int produces;
+
+    private ScratchOptimizer(Scratch4 terp, boolean strict) {
+        this.terp = terp;
+        this.strict = strict;
+    }
+
+    // STRICT raises type errors that show in LIST instead of leaving them
+    // to run time.
+    public static CodeWordRef compile(ScratchStack list, Scratch4 terp, boolean strict) {
+        return compile(list, terp, strict, 0);
+    }
+
+    // The first LOCALS slots of the frame are taken by the locals of the
+    // definition in LIST.
+    public static CodeWordRef compile(ScratchStack list, Scratch4 terp, boolean strict, int locals) {
+        ScratchOptimizer optimizer = new ScratchOptimizer(terp, strict);
+        optimizer.frame_size = locals;
+        ArrayList<Code> code = optimizer.expand(list, null, null);
+        Code[] fused = fuse(code.toArray(new Code[code.size()]));
+        checkLocals(fused, locals);
+        Code[] body = assemble(optimizer.verify(fused));
+        for (Code word : body) {
+            if (word instanceof CodeCheck) {
+                ((CodeCheck)word).code = body;
+            }
+        }
+        CodeWordRef word = new CodeWordRef(body, optimizer.frame_size);
+        word.locals = locals;
+        word.consumes = optimizer.consumes;
+        word.produces = optimizer.produces;
+        return word;
+    }
+
+    // A local is a slot in the frame of the definition that declared it,
+    // and only read and written there, by @ and !. Lists that are not
+    // compiled into their definition run with frames of their own.
+    private static void checkLocals(Code[] code, int locals) {
+        for (Code word : code) {
+            CodeLocalRef local = word instanceof CodeLocalRef ? (CodeLocalRef)word
+                : word instanceof CodeLocalFetch ? ((CodeLocalFetch)word).local
+                : word instanceof CodeLocalStore ? ((CodeLocalStore)word).local
+                : null;
+            if (local == null) {
+                continue;
+            }
+            if (local.slot >= locals) {
+                throw new ScratchError("Local " + local.name + " outside its definition");
+            }
+            if (word == local) {
+                throw new ScratchError("Local " + local.name + " without @ or !");
+            }
+        }
+    }
+
+    private static ScratchStack listAt(Code[] code, int i) {
+        if (is(code, i, CodeLiteral.class) && ((CodeLiteral)code[i]).value instanceof ScratchStack) {
+            return (ScratchStack)((CodeLiteral)code[i]).value;
+        }
+        return null;
+    }
+
+    // Thread and optimize LIST, expanding the control words it contains.
+    // LOOP is the compiled loop LIST is the body of, or BLOCK the IF body;
+    // at most one is set. As when run by IFTRUE, ?BREAK in an IF body only
+    // leaves the body, setting break_state for the loop around it to see
+    // at the end of its pass, and ?CONTINUE starts the body over.
+    private ArrayList<Code> expand(ScratchStack list, Block loop, Block block) {
+        Code[] code = fold(inline(CodeWordRef.thread(list), terp.inline_threshold), terp);
+        ArrayList<Code> out = new ArrayList<>(code.length);
+        for (int i = 0; i < code.length; i++) {
+            ScratchStack quote = listAt(code, i);
+            if (quote != null && (is(code, i + 1, CodeIfTrue.class) || is(code, i + 1, CodeIfFalse.class))) {
+                // cond [ body ] IFTRUE
+                Block inner = new Block();
+                out.add(new CodeJumpIf(is(code, i + 1, CodeIfFalse.class), inner.exit));
+                out.add(inner.next);
+                out.addAll(expand(quote, null, inner));
+                out.add(inner.exit);
+                i += 1;
+            } else if (quote != null && is(code, i + 1, CodeLoop.class)) {
+                // [ body ] LOOP
+                Block inner = new Block();
+                int slot = frame_size++;
+                out.add(new CodeLoopEnter(slot));
+                out.add(inner.next);
+                out.addAll(expand(quote, inner, null));
+                out.add(new CodeLoopBack(inner.next));
+                out.add(inner.exit);
+                out.add(new CodeLoopExit(slot));
+                i += 1;
+            } else if (quote != null && listAt(code, i + 1) != null && is(code, i + 2, CodeWhile.class)) {
+                // [ cond ] [ body ] WHILE
+                Block inner = new Block();
+                int slot = frame_size++;
+                out.add(new CodeLoopEnter(slot));
+                out.add(inner.next);
+                out.addAll(expand(quote, inner, null));
+                out.add(new CodeJumpIf(true, inner.exit));
+                // ?CONTINUE in the condition runs it again, and in the body
+                // runs the body again without the condition.
+                inner.body = new CodeLabel();
+                out.add(inner.body);
+                out.addAll(expand(listAt(code, i + 1), inner, null));
+                out.add(new CodeLoopBack(inner.next));
+                out.add(inner.exit);
+                out.add(new CodeLoopExit(slot));
+                i += 2;
+            } else if (quote != null && i + 1 < code.length && constantOf(code[i + 1]) instanceof Double
+                    && is(code, i + 2, CodeTimes.class)) {
+                // [ body ] n TIMES
+                Block inner = new Block();
+                int slot = frame_size;
+                frame_size += 2;
+                out.add(new CodeLoopEnter(slot));
+                out.add(new CodeTimesStart(slot + 1));
+                out.add(inner.next);
+                out.add(new CodeTimesNext(slot + 1, (double)constantOf(code[i + 1]), inner.exit));
+                inner.body = new CodeLabel(); // ?CONTINUE takes no pass.
+                out.add(inner.body);
+                out.addAll(expand(quote, inner, null));
+                out.add(new CodeLoopBack(inner.next));
+                out.add(inner.exit);
+                out.add(new CodeLoopExit(slot));
+                i += 2;
+            } else if (is(code, i, CodeBreak.class) && loop != null) {
+                out.add(new CodeJumpIf(true, loop.exit));
+            } else if (is(code, i, CodeBreak.class) && block != null) {
+                out.add(new CodeBreakTo(block.exit));
+            } else if (is(code, i, CodeContinue.class) && (loop != null || block != null)) {
+                out.add(new CodeJumpIf(true, loop != null ? loop.body : block.body));
+            } else {
+                out.add(code[i]);
+            }
+        }
+        return out;
+    }
+
+    // Find the stack depth at each word relative to the start of its
+    // section: the entry, the word after one of unknown effect, or a label
+    // reached at different depths. Words whose items were pushed within the
+    // code run unchecked, and typed where their types are known too. Where
+    // a section has more than one other check to save, a single CodeCheck
+    // at its start takes their place. If the whole code is one section, its
+    // stack effect goes to CONSUMES and PRODUCES.
+    private Code[] verify(Code[] code) {
+        int n = code.length;
+        int[] section = new int[n + 1];
+        int[] depth = new int[n + 1];
+        boolean[] split = new boolean[n]; // Labels that start a section.
+        HashMap<CodeLabel, Integer> labels = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (code[i] instanceof CodeLabel) {
+                labels.put((CodeLabel)code[i], i);
+            }
+        }
+        boolean changed;
+        do {
+            int s = 0;
+            int d = 0;
+            for (int i = 0; i < n; i++) {
+                if (split[i]) {
+                    s = i;
+                    d = 0;
+                }
+                section[i] = s;
+                depth[i] = d;
+                if (code[i].consumes < 0) {
+                    s = i + 1;
+                    d = 0;
+                } else {
+                    d += code[i].produces - code[i].consumes;
+                }
+            }
+            section[n] = s;
+            depth[n] = d;
+            // Every branch must arrive at its label as the code falling
+            // into it does.
+            changed = false;
+            for (int i = 0; i < n; i++) {
+                if (code[i] instanceof CodeBranch) {
+                    int target = labels.get(((CodeBranch)code[i]).label);
+                    int d_after = depth[i] + code[i].produces - code[i].consumes;
+                    if (!split[target] && (section[target] != section[i] || depth[target] != d_after)) {
+                        split[target] = true;
+                        changed = true;
+                    }
+                }
+            }
+        } while (changed);
+
+        byte[][] types = infer(code, labels);
+        boolean[] certain = certain(code, labels);
+        int[] need = new int[n + 1];
+        int[] checks = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (code[i].consumes >= 0) {
+                need[section[i]] = Math.max(need[section[i]], code[i].consumes - depth[i]);
+            }
+            if (code[i] instanceof CodePrimitive && code[i].consumes > types[i].length) {
+                checks[section[i]]++;
+            }
+        }
+        ArrayList<Code> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int s = section[i];
+            boolean guarded = checks[s] > 1 && need[s] > 0;
+            if (s == i && !split[i] && guarded) {
+                out.add(new CodeCheck(need[s]));
+            }
+            boolean typed = code[i].consumes >= 0 && typed(code[i], types[i], strict && certain[i]);
+            if (!(code[i] instanceof CodePrimitive) || code[i].consumes == 0) {
+                out.add(code[i]);
+            } else if (typed) {
+                out.add(new CodeTyped((CodePrimitive)code[i]));
+            } else if (guarded || code[i].consumes <= types[i].length) {
+                out.add(new CodeUnchecked((CodePrimitive)code[i]));
+            } else {
+                out.add(code[i]);
+            }
+            if (split[i] && guarded) {
+                out.add(new CodeCheck(need[s]));
+            }
+        }
+        if (section[n] == 0 && !(n > 0 && split[0])) {
+            consumes = need[0];
+            produces = need[0] + depth[n];
+        }
+        return out.toArray(new Code[out.size()]);
+    }
+
+    // Types of the items on top of the stack before each word, bottom first,
+    // as far as they are known: those pushed since the last word of unknown
+    // effect on every path there. ANY where the paths disagree.
+    private static byte[][] infer(Code[] code, HashMap<CodeLabel, Integer> labels) {
+        int n = code.length;
+        byte[][] types = new byte[n + 1][];
+        byte[][] arriving = new byte[n][]; // By branches, at each label.
+        boolean changed;
+        do {
+            changed = false;
+            byte[] known = new byte[0];
+            for (int i = 0; i < n; i++) {
+                if (arriving[i] != null) {
+                    known = merge(known, arriving[i]);
+                }
+                types[i] = known;
+                known = after(code[i], known);
+                if (code[i] instanceof CodeBranch) {
+                    int target = labels.get(((CodeBranch)code[i]).label);
+                    byte[] merged = arriving[target] == null ? known : merge(arriving[target], known);
+                    if (!Arrays.equals(merged, arriving[target])) {
+                        arriving[target] = merged;
+                        changed = true;
+                    }
+                }
+            }
+            types[n] = known;
+        } while (changed);
+        return types;
+    }
+
+    private static byte[] merge(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        byte[] out = new byte[length];
+        for (int j = 1; j <= length; j++) {
+            byte type = a[a.length - j];
+            out[length - j] = type == b[b.length - j] ? type : CodePrimitive.ANY;
+        }
+        return out;
+    }
+
+    private static byte[] after(Code word, byte[] known) {
+        if (word.consumes < 0) {
+            return new byte[0];
+        }
+        int base = known.length - word.consumes;
+        byte[] out = Arrays.copyOf(known, Math.max(base, 0) + word.produces);
+        for (int j = 0; j < word.produces; j++) {
+            byte type = CodePrimitive.ANY;
+            if (word instanceof CodePrimitive) {
+                type = ((CodePrimitive)word).leaves[j];
+                if (type <= CodePrimitive.COPY) {
+                    int k = base + CodePrimitive.COPY - type;
+                    type = k >= 0 ? known[k] : CodePrimitive.ANY;
+                }
+            } else if (word instanceof CodeNumber) {
+                type = ScratchStack.NUMBER;
+            } else if (word instanceof CodeTrue || word instanceof CodeFalse) {
+                type = ScratchStack.BOOLEAN;
+            } else if (word instanceof CodeVarRef) {
+                type = ScratchStack.VAR;
+            } else if (word instanceof CodeLiteral) {
+                type = ScratchStack.tagOf(((CodeLiteral)word).value);
+            } else if (word instanceof CodeConstRef) {
+                type = ScratchStack.tagOf(((CodeConstRef)word).value);
+            }
+            out[Math.max(base, 0) + j] = type;
+        }
+        return out;
+    }
+
+    private static final String[] EXPECTED = {
+        "Number expected", "Boolean expected", "String expected", "List expected", "Variable expected",
+    };
+
+    // Words that run whenever the code runs to its end: those no forward
+    // branch skips, up to the first backward branch, ?BREAK or ?CONTINUE.
+    // Only these are certain to meet the types found for them, so a body
+    // that may never run, such as one run 0 TIMES, is not rejected for
+    // what it would do.
+    private static boolean[] certain(Code[] code, HashMap<CodeLabel, Integer> labels) {
+        boolean[] certain = new boolean[code.length];
+        int skipped_to = 0;
+        for (int i = 0; i < code.length; i++) {
+            certain[i] = i >= skipped_to;
+            if (code[i] instanceof CodeBranch) {
+                int target = labels.get(((CodeBranch)code[i]).label);
+                if (target <= i) {
+                    break;
+                }
+                skipped_to = Math.max(skipped_to, target);
+            } else if (code[i] instanceof CodeBreak || code[i] instanceof CodeContinue) {
+                break;
+            }
+        }
+        return certain;
+    }
+
+    // Whether the items WORD takes are all known to be of the types it
+    // takes. A known type that it cannot take is an error when STRICT.
+    private static boolean typed(Code word, byte[] known, boolean strict) {
+        int base = known.length - word.consumes;
+        boolean typed = base >= 0;
+        for (int j = 0; j < word.consumes; j++) {
+            byte want = CodePrimitive.ANY;
+            if (word instanceof CodePrimitive) {
+                want = ((CodePrimitive)word).takes[j];
+            } else if (word instanceof CodeJumpIf || word instanceof CodeBreakTo) {
+                want = ScratchStack.BOOLEAN;
+            }
+            byte have = base + j >= 0 ? known[base + j] : CodePrimitive.ANY;
+            if (want == CodePrimitive.ANY) {
+                continue;
+            }
+            if (have != want) {
+                typed = false;
+                if (have != CodePrimitive.ANY && strict) {
+                    throw new ScratchError(EXPECTED[want]);
+                }
+            }
+        }
+        return typed;
+    }
+
+    // Drop the labels and point each branch at the word after its label.
+    static Code[] assemble(Code[] code) {
+        ArrayList<Code> out = new ArrayList<>(code.length);
+        for (Code word : code) {
+            if (word instanceof CodeLabel) {
+                ((CodeLabel)word).index = out.size();
+            } else {
+                out.add(word);
+            }
+        }
+        for (Code word : out) {
+            if (word instanceof CodeBranch) {
+                ((CodeBranch)word).target = ((CodeBranch)word).label.index;
+            }
+        }
+        return out.toArray(new Code[out.size()]);
+    }
+
+    // Body of a user word, if it may be copied into its callers: short, and
+    // without words such as ?BREAK whose effect depends on where they run.
+    // Callers hold the Code they were compiled against, so a copy stays
+    // exactly what the call would run even if the name is redefined later.
+    private static Code[] inlinable(Code word, int limit) {
+        Code[] body = null;
+        if (word instanceof CodeWordRef) {
+            body = ((CodeWordRef)word).code;
+        } else if (word instanceof CodeJitted) {
+            body = ((CodeJitted)word).code;
+        } else if (word instanceof CodeSwitch) {
+            body = ((CodeSwitch)word).code;
+        } else if (word instanceof CodeNodes) {
+            body = ((CodeNodes)word).code;
+        }
+        if (body == null || body.length > limit) {
+            return null;
+        }
+        for (Code inner : body) {
+            if (!(inner instanceof CodeCheck) && !(inner instanceof CodeUnchecked)
+                    && ScratchJit.overridesExec(inner.getClass())) {
+                return null;
+            }
+            // Locals are slots in the word's own frame, not its callers'.
+            Code word_inner = inner instanceof CodeUnchecked ? ((CodeUnchecked)inner).word : inner;
+            if (word_inner instanceof CodeLocalFetch || word_inner instanceof CodeLocalStore
+                    || word_inner instanceof CodeLocalsTake) {
+                return null;
+            }
+        }
+        return body;
+    }
+
+    // The caller is verified afresh, so checks and unchecked words are
+    // copied back in their original form.
+    public static Code[] inline(Code[] code, int limit) {
+        ArrayList<Code> out = new ArrayList<>(code.length);
+        for (Code word : code) {
+            Code[] body = inlinable(word, limit);
+            if (body != null) {
+                for (Code inner : body) {
+                    if (inner instanceof CodeUnchecked) {
+                        out.add(((CodeUnchecked)inner).word);
+                    } else if (!(inner instanceof CodeCheck)) {
+                        out.add(inner);
+                    }
+                }
+            } else {
+                out.add(word);
+            }
+        }
+        return out.toArray(new Code[out.size()]);
+    }
+
+    // Number or boolean that WORD always pushes, or null.
+    private static Object constantOf(Code word) {
+        if (word.getClass() == CodeNumber.class) {
+            return ((CodeNumber)word).value;
+        }
+        if (word.getClass() == CodeTrue.class) {
+            return true;
+        }
+        if (word.getClass() == CodeFalse.class) {
+            return false;
+        }
+        if (word.getClass() == CodeConstRef.class) {
+            Object value = ((CodeConstRef)word).value;
+            if (value instanceof Double || value instanceof Boolean) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static Code literalOf(Object value) {
+        if (value instanceof Boolean) {
+            return (boolean)value ? new CodeTrue() : new CodeFalse();
+        }
+        return new CodeNumber((double)value);
+    }
+
+    // Run pure words whose operands are all constants at compile time, on a
+    // scratch stack, and keep their results as literals instead. A word
+    // that fails (say, on a type mismatch) is left to fail at run time.
+    public static Code[] fold(Code[] code, Scratch4 terp) {
+        ArrayList<Code> out = new ArrayList<>(code.length);
+        ScratchStack scratch = new ScratchStack();
+        for (Code word : code) {
+            Integer arity = PURE.get(word.getClass());
+            int n = arity == null ? -1 : arity;
+            boolean constant = n >= 0 && n <= out.size();
+            for (int i = out.size() - n; constant && i < out.size(); i++) {
+                constant = constantOf(out.get(i)) != null;
+            }
+            if (!constant) {
+                out.add(word);
+                continue;
+            }
+            scratch.clear();
+            for (int i = out.size() - n; i < out.size(); i++) {
+                scratch.push(constantOf(out.get(i)));
+            }
+            ScratchStack old_stack = terp.stack;
+            terp.stack = scratch;
+            try {
+                word.call(terp);
+            } catch (RuntimeException e) {
+                out.add(word);
+                continue;
+            } finally {
+                terp.stack = old_stack;
+            }
+            out.subList(out.size() - n, out.size()).clear();
+            for (int i = 0; i < scratch.size(); i++) {
+                out.add(literalOf(scratch.get(i)));
+            }
+        }
+        return out.toArray(new Code[out.size()]);
+    }
+
+    public static Code[] fuse(Code[] code) {
+        ArrayList<Code> out = new ArrayList<>(code.length);
+        int i = 0;
+        while (i < code.length) {
+            if (is(code, i, CodeVarRef.class)
+                    && is(code, i + 1, CodeFetch.class)
+                    && is(code, i + 2, CodeNumber.class)
+                    && (is(code, i + 3, CodeAdd.class) || is(code, i + 3, CodeSub.class))
+                    && i + 4 < code.length && code[i + 4] == code[i]
+                    && is(code, i + 5, CodeStore.class)) {
+                // <var> @ n + <var> !
+                double n = ((CodeNumber)code[i + 2]).value;
+                out.add(new CodeVarAdd((CodeVarRef)code[i], is(code, i + 3, CodeAdd.class) ? n : -n));
+                i += 6;
+            } else if (is(code, i, CodeLocalRef.class) && is(code, i + 1, CodeFetch.class)) {
+                // <local> @
+                out.add(new CodeLocalFetch((CodeLocalRef)code[i]));
+                i += 2;
+            } else if (is(code, i, CodeLocalRef.class) && is(code, i + 1, CodeStore.class)) {
+                // <local> !
+                out.add(new CodeLocalStore((CodeLocalRef)code[i]));
+                i += 2;
+            } else if (is(code, i, CodeVarRef.class) && is(code, i + 1, CodeFetch.class)) {
+                // <var> @
+                out.add(new CodeVarFetch((CodeVarRef)code[i]));
+                i += 2;
+            } else if (is(code, i, CodeVarRef.class) && is(code, i + 1, CodeStore.class)) {
+                // <var> !
+                out.add(new CodeVarStore((CodeVarRef)code[i]));
+                i += 2;
+            } else if (is(code, i, CodeNumber.class)
+                    && (is(code, i + 1, CodeAdd.class) || is(code, i + 1, CodeSub.class))) {
+                // n +
+                double n = ((CodeNumber)code[i]).value;
+                out.add(new CodeAddImmediate(is(code, i + 1, CodeAdd.class) ? n : -n));
+                i += 2;
+            } else if (is(code, i, CodeDup.class) && is(code, i + 1, CodeMul.class)) {
+                out.add(new CodeSquare());
+                i += 2;
+            } else if (is(code, i, CodeSwap.class) && is(code, i + 1, CodeDrop.class)) {
+                out.add(new CodeNip());
+                i += 2;
+            } else {
+                out.add(code[i]);
+                i++;
+            }
+        }
+        return out.toArray(new Code[out.size()]);
+    }
+
+    // Exact class only: a subclass may not do what the pattern assumes.
+    private static boolean is(Code[] code, int i, Class<? extends Code> cls) {
+        return i < code.length && code[i].getClass() == cls;
+    }
+}
+
+// Position in code being compiled; dropped once branches are resolved.
+class CodeLabel extends Code {
+    public int index = -1;
+
+    public CodeLabel() {
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+    }
+}
+
+// Jump within compiled code to LABEL, resolved to TARGET.
+abstract class CodeBranch extends Code {
+    public final CodeLabel label;
+    public int target;
+
+    public CodeBranch(CodeLabel label) {
+        this.label = label;
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        throw new IllegalStateException("Branch outside compiled code");
+    }
+}
+
+// Pop a boolean and jump if it equals WHEN.
+class CodeJumpIf extends CodeBranch {
+    public final boolean when;
+
+    public CodeJumpIf(boolean when, CodeLabel label) {
+        super(label);
+        this.when = when;
+        consumes = 1;
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        boolean cond = terp.stack.popBoolean();
+        return cond == when ? target : ip + 1;
+    }
+}
+
+// ?BREAK in an IF body outside any compiled loop: leave the body and stop
+// the LOOP that runs this word, as ?BREAK does at the end of a list.
+class CodeBreakTo extends CodeBranch {
+    public CodeBreakTo(CodeLabel label) {
+        super(label);
+        consumes = 1;
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        boolean cond = terp.stack.popBoolean();
+        if (cond) {
+            terp.break_state = true;
+            return target;
+        }
+        return ip + 1;
+    }
+}
+
+// Save the break state of an enclosing loop and start a new one.
+class CodeLoopEnter extends Code {
+    public final int slot;
+
+    public CodeLoopEnter(int slot) {
+        this.slot = slot;
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.frame[slot] = terp.break_state ? 1 : 0;
+        terp.break_state = false;
+    }
+}
+
+// Back to the top of a loop, unless a word it called hit ?BREAK.
+class CodeLoopBack extends CodeBranch {
+    public CodeLoopBack(CodeLabel label) {
+        super(label);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        return terp.break_state ? ip + 1 : target;
+    }
+}
+
+class CodeLoopExit extends Code {
+    public final int slot;
+
+    public CodeLoopExit(int slot) {
+        this.slot = slot;
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.break_state = terp.frame[slot] != 0;
+    }
+}
+
+class CodeTimesStart extends Code {
+    public final int slot;
+
+    public CodeTimesStart(int slot) {
+        this.slot = slot;
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.frame[slot] = 0;
+    }
+}
+
+// Count an iteration, or leave the loop after COUNT of them.
+class CodeTimesNext extends CodeBranch {
+    public final int slot;
+    public final double count;
+
+    public CodeTimesNext(int slot, double count, CodeLabel label) {
+        super(label);
+        this.slot = slot;
+        this.count = count;
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (terp.frame[slot] < count) {
+            terp.frame[slot]++;
+            return ip + 1;
+        }
+        return target;
+    }
+}
+
+// A word that ScratchOptimizer has proven to find its items on the stack.
+class CodeUnchecked extends Code {
+    public final CodePrimitive word;
+
+    public CodeUnchecked(CodePrimitive word) {
+        this.word = word;
+        consumes = word.consumes;
+        produces = word.produces;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        word.run(terp);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        word.run(terp);
+        return ip + 1;
+    }
+}
+
+// An unchecked word whose items are proven to be of the types it takes.
+class CodeTyped extends CodeUnchecked {
+    public CodeTyped(CodePrimitive word) {
+        super(word);
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        word.runTyped(terp);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        word.runTyped(terp);
+        return ip + 1;
+    }
+}
+
+// Check that the stack holds the DEPTH items a section of compiled code was
+// proven against. If it does not, run the rest of the code checked word by
+// word, so that it fails just where and how it would have unverified.
+class CodeCheck extends Code {
+    public final int depth;
+    public Code[] code; // The code this check is part of, once assembled.
+
+    public CodeCheck(int depth) {
+        this.depth = depth;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        throw new IllegalStateException("Check outside compiled code");
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (terp.stack.size() >= depth) {
+            return ip + 1;
+        }
+        ip++;
+        while (ip < code.length) {
+            Code word = code[ip];
+            if (word instanceof CodeUnchecked) {
+                ((CodeUnchecked)word).word.call(terp);
+                ip++;
+            } else if (word instanceof CodeCheck) {
+                ip++;
+            } else {
+                int next = word.exec(terp, ip);
+                if (next <= ip) {
+                    terp.backward();
+                }
+                ip = next;
+            }
+        }
+        return EXIT;
+    }
+}
+
+// <var> @ n + <var> !
+class CodeVarAdd extends Code {
+    public final CodeVarRef reference;
+    public final double n;
+    private final long number; // N as a ScratchValue.
+
+    public CodeVarAdd(CodeVarRef reference, double n) {
+        this.reference = reference;
+        this.n = n;
+        number = ScratchValue.number(n);
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (!ScratchValue.isNumber(reference.value)) {
+            throw new RuntimeException("Number expected");
+        }
+        reference.value = ScratchValue.add(reference.value, number);
+    }
+}
+
+// <var> @
+class CodeVarFetch extends Code {
+    public final CodeVarRef reference;
+
+    public CodeVarFetch(CodeVarRef reference) {
+        this.reference = reference;
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.fetch(reference);
+    }
+}
+
+// <var> !
+class CodeVarStore extends CodePrimitive {
+    public final CodeVarRef reference;
+
+    public CodeVarStore(CodeVarRef reference) {
+        super("x --");
+        this.reference = reference;
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.store(reference);
+    }
+}
+
+// n +
+class CodeAddImmediate extends CodePrimitive {
+    public final double n;
+    private final long number; // N as a ScratchValue.
+
+    public CodeAddImmediate(double n) {
+        super("n -- n");
+        this.n = n;
+        number = ScratchValue.number(n);
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long tos = terp.stack.popNumber();
+        terp.stack.pushNumber(ScratchValue.add(tos, number));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long tos = terp.stack.popNumberUnchecked();
+        terp.stack.pushNumber(ScratchValue.add(tos, number));
+    }
+}
+
+// DUP *
+class CodeSquare extends CodePrimitive {
+    public CodeSquare() {
+        super("n -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long tos = terp.stack.popNumber();
+        terp.stack.pushNumber(ScratchValue.mul(tos, tos));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long tos = terp.stack.popNumberUnchecked();
+        terp.stack.pushNumber(ScratchValue.mul(tos, tos));
+    }
+}
+
+// SWAP DROP
+class CodeNip extends CodePrimitive {
+    public CodeNip() {
+        super("x y -- y");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.nip();
+    }
+}
+
+class CodeDef extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        String new_word = terp.lexer.nextWord();
+        if (new_word == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        terp.latest = new_word;
+        terp.recursion = new CodeRecurse();
+        terp.locals = null;
+        terp.startCompiling();
+    }
+}
+
+class CodeEnd extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        CodeWordRef word;
+        try {
+            word = ScratchOptimizer.compile(terp.stack, terp, true, terp.locals == null ? 0 : terp.locals.size());
+        } catch (ScratchError e) {
+            terp.stack.clear(); // Drop the definition.
+            terp.recursion = null;
+            terp.locals = null;
+            terp.stopCompiling();
+            throw e;
+        }
+        word.symbol = terp.intern(terp.latest);
+        terp.stack.clear(); // Clear compile_buffer.
+        Code executable = terp.executable(word);
+        terp.recursion.word = executable;
+        terp.recursion = null;
+        terp.locals = null;
+        terp.define(word.symbol, executable);
+        terp.stopCompiling();
+    }
+}
+
+// Call the word being defined, which has no name to call it by until it is
+// done.
+class CodeRecurse extends Code {
+    public Code word; // Once the definition is done.
+
+    public CodeRecurse() {
+        enters = true;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (word == null) {
+            throw new RuntimeException("Word not yet defined");
+        }
+        word.call(terp);
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (word == null) {
+            throw new RuntimeException("Word not yet defined");
+        }
+        return terp.callable(word);
+    }
+}
+
+// RECURSE compiles the CodeRecurse of the word being defined.
+class CodeRecurseWord extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.recursion == null) {
+            throw new ScratchError("RECURSE outside a definition");
+        }
+        terp.stack.push(terp.recursion);
+    }
+}
+
+// { a b } in a definition takes the top two items off the stack into new
+// locals A and B, B from the top. Each call has locals of its own, in
+// slots of its frame; "a @" and "x a !" read and write them.
+class CodeLocals extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.recursion == null) {
+            throw new ScratchError("{ outside a definition");
+        }
+        if (terp.locals == null) {
+            terp.locals = new ArrayList<>();
+        }
+        int first = terp.locals.size();
+        while (true) {
+            String name = terp.lexer.nextWord();
+            if (name == null) {
+                throw new RuntimeException("Unexpected end of input");
+            }
+            if (name.equals("}")) {
+                break;
+            }
+            terp.locals.add(new CodeLocalRef(terp.intern(name), terp.locals.size(), name.toUpperCase()));
+        }
+        int count = terp.locals.size() - first;
+        if (count > 0) {
+            terp.stack.push(new CodeLocalsTake(first, count));
+        }
+    }
+}
+
+// A local in the definition that declared it, until ScratchOptimizer
+// turns it and the @ or ! after it into one of the words below.
+class CodeLocalRef extends Code {
+    public final int symbol;
+    public final int slot;
+    public final String name;
+
+    public CodeLocalRef(int symbol, int slot, String name) {
+        this.symbol = symbol;
+        this.slot = slot;
+        this.name = name;
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        throw new RuntimeException("Local " + name + " outside its definition");
+    }
+}
+
+// Pop COUNT items into the locals from slot FIRST on, the top into the last.
+class CodeLocalsTake extends CodePrimitive {
+    public final int first;
+
+    public CodeLocalsTake(int first, int count) {
+        super("?".repeat(count) + " --");
+        this.first = first;
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        for (int slot = first + consumes - 1; slot >= first; slot--) {
+            terp.stack.storeSlot(terp.frame, terp.frame_objects, slot);
+        }
+    }
+}
+
+// <local> @
+class CodeLocalFetch extends Code {
+    public final CodeLocalRef local;
+    public final int slot;
+
+    public CodeLocalFetch(CodeLocalRef local) {
+        this.local = local;
+        slot = local.slot;
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.fetchSlot(terp.frame, terp.frame_objects, slot);
+    }
+}
+
+// <local> !
+class CodeLocalStore extends CodePrimitive {
+    public final CodeLocalRef local;
+    public final int slot;
+
+    public CodeLocalStore(CodeLocalRef local) {
+        super("x --");
+        this.local = local;
+        slot = local.slot;
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        terp.stack.storeSlot(terp.frame, terp.frame_objects, slot);
+    }
+}
+
+// Let other tasks of a ScratchScheduler run.
+class CodeYield extends Code {
+    public CodeYield() {
+        enters = true;
+        consumes = 0;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.pause();
+    }
+}
+
+class CodeCompile extends Code {
+    @Override
+    public void call(Scratch4 terp) {
+        String next_word = terp.lexer.nextWord();
+        if (next_word == null) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        terp.stack.push(terp.compile(next_word));
+    }
+}
+
+class CodeDoImmediate extends Code {
+    @Override
+    public void call(Scratch4 terp) {
+        ((Code)terp.compile(terp.latest)).immediate = true;
+    }
+}
+
+class CodeList extends CodeImmediate {
+    @Override
+    public void call(Scratch4 terp) {
+        ScratchStack list = new ScratchStack();
+        ScratchStack old_stack = terp.stack;
+        terp.stack = list;
+        do {
+            if (!terp.lexer.nextToken()) {
+                throw new RuntimeException("Unexpected end of input");
+            }
+            if (terp.lexer.tokenIs("]")) {
+                break;
+            }
+            Object obj = terp.compileToken();
+            if ((obj instanceof Code) && ((Code)obj).immediate) {
+                terp.interpret(obj);
+            } else {
+                terp.stack.push(obj);
+            }
+        } while (true);
+        terp.stack = old_stack;
+        terp.allocate(8L * list.size());
+        terp.stack.push(list);
+    }
+}
+
+class CodeLength extends CodePrimitive {
+    public CodeLength() {
+        super("l -- n");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        Object temp = terp.stack.pop();
+        if (!(temp instanceof ScratchStack)) {
+            throw new RuntimeException("List expected");
+        }
+        terp.stack.pushNumber(ScratchValue.integer(((ScratchStack)temp).size()));
+    }
+}
+
+class CodeItem extends CodePrimitive {
+    public CodeItem() {
+        super("l n -- ?");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long index = terp.stack.popNumber();
+        Object obj = terp.stack.pop();
+        if (obj instanceof ScratchStack) {
+            terp.stack.pushItem((ScratchStack)obj, ScratchValue.asInt(index));
+        } else {
+            throw new RuntimeException("Object expected");
+        }
+    }
+}
+
+class CodeRun extends Code {
+    public CodeRun() {
+        enters = true;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        terp.quotation(terp.stack.pop()).call(terp);
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        return terp.callable(terp.quotation(terp.stack.pop()));
+    }
+}
+
+class CodeTimes extends Code {
+    public CodeTimes() {
+        enters = true;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        double count = terp.stack.popDouble();
+        Code word = terp.quotation(terp.stack.pop());
+        boolean old_break_state = terp.break_state;
+        terp.break_state = false;
+        for (int i = 0; i < count && !terp.break_state; i++) {
+            word.call(terp);
+        }
+        terp.break_state = old_break_state;
+    }
+
+    // Outside definitions, where their lists are compiled in, the loop
+    // words run Java loops; execute() runs them as code of their own.
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        double count = terp.stack.popDouble();
+        Code word = terp.quotation(terp.stack.pop());
+        CodeLabel next = new CodeLabel();
+        CodeLabel exit = new CodeLabel();
+        return new CodeWordRef(ScratchOptimizer.assemble(new Code[] {
+            new CodeLoopEnter(0), new CodeTimesStart(1), next, new CodeTimesNext(1, count, exit),
+            word, new CodeLoopBack(next), exit, new CodeLoopExit(0),
+        }), 2);
+    }
+}
+
+class CodeIfTrue extends Code {
+    public CodeIfTrue() {
+        enters = true;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        boolean cond = terp.stack.popBoolean();
+        Code word = terp.quotation(code);
+        if (cond) {
+            word.call(terp);
+        }
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        boolean cond = terp.stack.popBoolean();
+        Code word = terp.quotation(code);
+        return cond ? terp.callable(word) : null;
+    }
+}
+
+class CodeIfFalse extends Code {
+    public CodeIfFalse() {
+        enters = true;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        boolean cond = terp.stack.popBoolean();
+        Code word = terp.quotation(code);
+        if (!cond) {
+            word.call(terp);
+        }
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        boolean cond = terp.stack.popBoolean();
+        Code word = terp.quotation(code);
+        return !cond ? terp.callable(word) : null;
+    }
+}
+
+class CodeWhile extends Code {
+    public CodeWhile() {
+        enters = true;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        Object cond = terp.stack.pop();
+        Code code_word = terp.quotation(code);
+        Code cond_word = terp.quotation(cond);
+        boolean old_break_state = terp.break_state;
+        terp.break_state = false;
+        do {
+            cond_word.call(terp);
+            if (terp.stack.size() < 1) {
+                throw new RuntimeException("Not enough items on stack");
+            }
+            boolean val = terp.stack.popBoolean();
+            if (val) {
+                break;
+            }
+            code_word.call(terp);
+        } while (!terp.break_state);
+        terp.break_state = old_break_state;
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (terp.stack.size() < 2) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Object code = terp.stack.pop();
+        Object cond = terp.stack.pop();
+        Code code_word = terp.quotation(code);
+        Code cond_word = terp.quotation(cond);
+        CodeLabel next = new CodeLabel();
+        CodeLabel exit = new CodeLabel();
+        return new CodeWordRef(ScratchOptimizer.assemble(new Code[] {
+            new CodeLoopEnter(0), next, cond_word, new CodeJumpIf(true, exit),
+            code_word, new CodeLoopBack(next), exit, new CodeLoopExit(0),
+        }), 1);
+    }
+}
+
+// Restart the running code when TOS is true.
+class CodeContinue extends Code {
+    @Override
+    public void call(Scratch4 terp) {
+        exec(terp, 0);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        boolean cond = terp.stack.popBoolean();
+        return cond ? 0 : ip + 1;
+    }
+}
+
+// Leave the running code and stop the enclosing loop when TOS is true.
+class CodeBreak extends Code {
+    @Override
+    public void call(Scratch4 terp) {
+        exec(terp, 0);
+    }
+
+    @Override
+    public int exec(Scratch4 terp, int ip) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        boolean cond = terp.stack.popBoolean();
+        if (cond) {
+            terp.break_state = true;
+            return EXIT;
+        }
+        return ip + 1;
+    }
+}
+
+class CodeLoop extends Code {
+    public CodeLoop() {
+        enters = true;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Code code_word = terp.quotation(terp.stack.pop());
+        boolean old_break_state = terp.break_state;
+        terp.break_state = false;
+        do {
+            code_word.call(terp);
+        } while (!terp.break_state);
+        terp.break_state = old_break_state;
+    }
+
+    @Override
+    public CodeWordRef enter(Scratch4 terp) {
+        if (terp.stack.size() < 1) {
+            throw new RuntimeException("Not enough items on stack");
+        }
+        Code code_word = terp.quotation(terp.stack.pop());
+        CodeLabel next = new CodeLabel();
+        return new CodeWordRef(ScratchOptimizer.assemble(new Code[] {
+            new CodeLoopEnter(0), next, code_word, new CodeLoopBack(next), new CodeLoopExit(0),
+        }), 1);
+    }
+}
+
+class CodeTrue extends Code {
+    public CodeTrue() {
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.push(true);
+    }
+}
+
+class CodeFalse extends Code {
+    public CodeFalse() {
+        consumes = 0;
+        produces = 1;
+    }
+
+    @Override
+    public void call(Scratch4 terp) {
+        terp.stack.push(false);
+    }
+}
+
+class CodeAnd extends CodePrimitive {
+    public CodeAnd() {
+        super("b b -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        boolean term2 = terp.stack.popBoolean();
+        boolean term1 = terp.stack.popBoolean();
+        terp.stack.push(term1 && term2);
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        boolean term2 = terp.stack.popBooleanUnchecked();
+        boolean term1 = terp.stack.popBooleanUnchecked();
+        terp.stack.push(term1 && term2);
+    }
+}
+
+class CodeOr extends CodePrimitive {
+    public CodeOr() {
+        super("b b -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        boolean term2 = terp.stack.popBoolean();
+        boolean term1 = terp.stack.popBoolean();
+        terp.stack.push(term1 || term2);
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        boolean term2 = terp.stack.popBooleanUnchecked();
+        boolean term1 = terp.stack.popBooleanUnchecked();
+        terp.stack.push(term1 || term2);
+    }
+}
+
+class CodeNot extends CodePrimitive {
+    public CodeNot() {
+        super("b -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        boolean term = terp.stack.popBoolean();
+        terp.stack.push(!term);
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        boolean term = terp.stack.popBooleanUnchecked();
+        terp.stack.push(!term);
+    }
+}
+
+class CodeLess extends CodePrimitive {
+    public CodeLess() {
+        super("n n -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long term2 = terp.stack.popNumber();
+        long term1 = terp.stack.popNumber();
+        terp.stack.push(ScratchValue.less(term1, term2));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long term2 = terp.stack.popNumberUnchecked();
+        long term1 = terp.stack.popNumberUnchecked();
+        terp.stack.push(ScratchValue.less(term1, term2));
+    }
+}
+
+class CodeLE extends CodePrimitive {
+    public CodeLE() {
+        super("n n -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long term2 = terp.stack.popNumber();
+        long term1 = terp.stack.popNumber();
+        terp.stack.push(ScratchValue.lessOrEqual(term1, term2));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long term2 = terp.stack.popNumberUnchecked();
+        long term1 = terp.stack.popNumberUnchecked();
+        terp.stack.push(ScratchValue.lessOrEqual(term1, term2));
+    }
+}
+
+class CodeEqual extends CodePrimitive {
+    public CodeEqual() {
+        super("n n -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long term2 = terp.stack.popNumber();
+        long term1 = terp.stack.popNumber();
+        terp.stack.push(ScratchValue.equal(term1, term2));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long term2 = terp.stack.popNumberUnchecked();
+        long term1 = terp.stack.popNumberUnchecked();
+        terp.stack.push(ScratchValue.equal(term1, term2));
+    }
+}
+
+class CodeGE extends CodePrimitive {
+    public CodeGE() {
+        super("n n -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long term2 = terp.stack.popNumber();
+        long term1 = terp.stack.popNumber();
+        terp.stack.push(ScratchValue.lessOrEqual(term2, term1));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long term2 = terp.stack.popNumberUnchecked();
+        long term1 = terp.stack.popNumberUnchecked();
+        terp.stack.push(ScratchValue.lessOrEqual(term2, term1));
+    }
+}
+
+class CodeGreater extends CodePrimitive {
+    public CodeGreater() {
+        super("n n -- b");
+    }
+
+    @Override
+    public void run(Scratch4 terp) {
+        long term2 = terp.stack.popNumber();
+        long term1 = terp.stack.popNumber();
+        terp.stack.push(ScratchValue.less(term2, term1));
+    }
+
+    @Override
+    public void runTyped(Scratch4 terp) {
+        long term2 = terp.stack.popNumberUnchecked();
+        long term1 = terp.stack.popNumberUnchecked();
+        terp.stack.push(ScratchValue.less(term2, term1));
+    }
+}
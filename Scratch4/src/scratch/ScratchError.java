@@ -0,0 +1,11 @@
+package scratch;
+
+// Error raised for a bad program. It has no stack trace, so rejecting
+// untrusted input costs little more than a result code.
+public class ScratchError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ScratchError(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,151 @@
+package scratch;
+
+// Tokenizer that exposes the current word as START and LENGTH over TEXT,
+// along with its SYMBOL ID, so that looking it up needs no copy.
+class ScratchLexer {
+    private String text;
+    private ScratchSymbols symbols;
+    private int position; // Beginning of TEXT.
+    public int start; // Current word.
+    public int length;
+    public int symbol; // -1 for a word that is not a known name.
+    // Words of TEXT found beforehand, or null to find them here.
+    private ScratchProgram program;
+    private int next_word; // First word of PROGRAM not yet passed.
+    private int word = -1; // Current word in PROGRAM, -1 if found here.
+    private ScratchSymbols owner; // Table of the IDs in PROGRAM.
+
+    public ScratchLexer(String text, ScratchSymbols symbols) {
+        this.text = text;
+        this.symbols = symbols;
+        position = 0;
+    }
+
+    public ScratchLexer(ScratchProgram program, ScratchSymbols symbols) {
+        this(program.text, symbols);
+        this.program = program;
+        owner = program.owner();
+    }
+
+    // Trying to avoid regular expressions here.
+    public boolean isWhitespace(char ch) {
+        return ch == ' '
+            || ch == '\t'
+            || ch == '\r'
+            || ch == '\n';
+    }
+
+    public boolean nextToken() {
+        if (program != null && !insideWord()) {
+            return nextProgramWord();
+        }
+        word = -1;
+        int end = text.length();
+        int pos = position;
+        while (pos < end && isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        if (pos >= end) {
+            position = pos;
+            return false;
+        }
+        int new_pos = pos;
+        while (new_pos < end && !isWhitespace(text.charAt(new_pos))) {
+            new_pos++;
+        }
+        start = pos;
+        length = new_pos - pos;
+        symbol = symbols.find(text, start, length);
+        position = new_pos + 1; // Skip the delimiter.
+        return true;
+    }
+
+    // Whether POSITION is in the middle of a word of PROGRAM, as after
+    // the string in "x"y, so the word has to be found afresh.
+    private boolean insideWord() {
+        int[] starts = program.starts;
+        while (next_word < starts.length && starts[next_word] < position) {
+            next_word++;
+        }
+        return next_word > 0 && starts[next_word - 1] + program.lengths[next_word - 1] > position;
+    }
+
+    private boolean nextProgramWord() {
+        if (next_word == program.starts.length) {
+            position = text.length();
+            word = -1;
+            return false;
+        }
+        word = next_word++;
+        start = program.starts[word];
+        length = program.lengths[word];
+        symbol = program.symbols[word];
+        if (symbol < 0 || !symbols.agrees(owner, symbol)) {
+            symbol = symbols.find(text, start, length);
+        }
+        position = start + length + 1; // Skip the delimiter.
+        return true;
+    }
+
+    public String tokenText() {
+        return text.substring(start, start + length);
+    }
+
+    public boolean scanNumber(ScratchNumber number) {
+        if (word >= 0) {
+            number.value = program.numbers[word];
+            return program.is_number[word];
+        }
+        return number.scan(text, start, length);
+    }
+
+    public boolean tokenIs(String word) {
+        return length == word.length() && text.startsWith(word, start);
+    }
+
+    public String nextWord() {
+        return nextToken() ? tokenText() : null;
+    }
+
+    public String nextCharsUpTo(char ch) {
+        if (position >= text.length()) {
+            return null;
+        }
+        int new_pos = text.indexOf(ch, position);
+        if (new_pos < 0) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        String collector = text.substring(position, new_pos);
+        position = new_pos + 1; // Skip the delimiter.
+        return collector;
+    }
+
+    // Same as nextCharsUpTo() without collecting the characters.
+    public void skipUpTo(char ch) {
+        if (position >= text.length()) {
+            return;
+        }
+        int new_pos = text.indexOf(ch, position);
+        if (new_pos < 0) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        position = new_pos + 1; // Skip the delimiter.
+    }
+
+    // Skip words up to and including the first one ending with SUFFIX.
+    public void skipPastWordEnding(String suffix) {
+        int from = position;
+        while (true) {
+            int found = from < text.length() ? text.indexOf(suffix, from) : -1;
+            if (found < 0) {
+                throw new RuntimeException("Unexpected end of input");
+            }
+            int end = found + suffix.length();
+            if (end >= text.length() || isWhitespace(text.charAt(end))) {
+                position = end + 1; // Skip the delimiter.
+                return;
+            }
+            from = found + 1;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package scratch;
+
+// Error raised when a run goes over one of its limits. There is one of
+// each, made up front, so stopping a runaway script allocates nothing.
+public class ScratchLimit extends ScratchError {
+    public static final ScratchLimit STEPS = new ScratchLimit("Step limit exceeded");
+    public static final ScratchLimit TIME = new ScratchLimit("Time limit exceeded");
+    public static final ScratchLimit DEPTH = new ScratchLimit("Stack depth limit exceeded");
+    public static final ScratchLimit BYTES = new ScratchLimit("Memory limit exceeded");
+    private static final long serialVersionUID = 1L;
+
+    private ScratchLimit(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,144 @@
+package scratch;
+
+// Scanner for numeric literals in the syntax of Double.parseDouble, less
+// NaN and Infinity, which are not numbers in Scratch. A word that is not a
+// number is reported by the result instead of an exception. Short decimals
+// are converted exactly with one multiply or divide.
+class ScratchNumber {
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    public double value; // Result of the last successful scan().
+
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    private static boolean isHexDigit(char ch) {
+        return isDigit(ch) || ((ch | 0x20) >= 'a' && (ch | 0x20) <= 'f');
+    }
+
+    private static boolean isSuffix(char ch) {
+        return ch == 'f' || ch == 'F' || ch == 'd' || ch == 'D';
+    }
+
+    public boolean scan(String text, int start, int length) {
+        int end = start + length;
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            return false;
+        }
+        if (end - i > 2 && text.charAt(i) == '0' && (text.charAt(i + 1) | 0x20) == 'x') {
+            return scanHex(text, start, i + 2, end);
+        }
+        long mantissa = 0;
+        int digits = 0; // Significant digits in MANTISSA.
+        int scale = 0;
+        boolean seen_digit = false;
+        boolean seen_point = false;
+        for (; i < end; i++) {
+            char ch = text.charAt(i);
+            if (ch == '.' && !seen_point) {
+                seen_point = true;
+                continue;
+            }
+            if (!isDigit(ch)) {
+                break;
+            }
+            seen_digit = true;
+            if (mantissa != 0 || ch != '0') {
+                digits++;
+            }
+            if (digits <= MAX_EXACT_DIGITS + 1) {
+                mantissa = mantissa * 10 + (ch - '0');
+                if (seen_point) {
+                    scale--;
+                }
+            } else if (!seen_point) {
+                scale++;
+            }
+        }
+        if (!seen_digit) {
+            return false;
+        }
+        if (i < end && (text.charAt(i) | 0x20) == 'e') {
+            i++;
+            boolean negative_exponent = false;
+            if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+                negative_exponent = text.charAt(i) == '-';
+                i++;
+            }
+            if (i == end || !isDigit(text.charAt(i))) {
+                return false;
+            }
+            int exponent = 0;
+            for (; i < end && isDigit(text.charAt(i)); i++) {
+                exponent = Math.min(exponent * 10 + (text.charAt(i) - '0'), 100000);
+            }
+            scale += negative_exponent ? -exponent : exponent;
+        }
+        if (i < end && isSuffix(text.charAt(i))) {
+            i++;
+        }
+        if (i != end) {
+            return false;
+        }
+        if (mantissa == 0) {
+            value = negative ? -0.0 : 0.0;
+        } else if (digits <= MAX_EXACT_DIGITS && scale >= -22 && scale <= 22) {
+            value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+            if (negative) {
+                value = -value;
+            }
+        } else {
+            // Well-formed, so this cannot throw; it only rounds correctly.
+            value = Double.parseDouble(text.substring(start, end));
+        }
+        return true;
+    }
+
+    // Hexadecimal literal such as 0x1.8p1; the binary exponent is required.
+    private boolean scanHex(String text, int start, int i, int end) {
+        boolean seen_digit = false;
+        boolean seen_point = false;
+        for (; i < end; i++) {
+            char ch = text.charAt(i);
+            if (ch == '.' && !seen_point) {
+                seen_point = true;
+            } else if (isHexDigit(ch)) {
+                seen_digit = true;
+            } else {
+                break;
+            }
+        }
+        if (!seen_digit || i == end || (text.charAt(i) | 0x20) != 'p') {
+            return false;
+        }
+        i++;
+        if (i < end && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+            i++;
+        }
+        if (i == end || !isDigit(text.charAt(i))) {
+            return false;
+        }
+        while (i < end && isDigit(text.charAt(i))) {
+            i++;
+        }
+        if (i < end && isSuffix(text.charAt(i))) {
+            i++;
+        }
+        if (i != end) {
+            return false;
+        }
+        value = Double.parseDouble(text.substring(start, end));
+        return true;
+    }
+}
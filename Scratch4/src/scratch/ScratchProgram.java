@@ -0,0 +1,110 @@
+package scratch;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A script lexed once, to be run any number of times by Scratch4. It holds
+// where each word starts and ends, its symbol ID and, for words that read
+// as numbers, their values. What a name means is looked up as the script
+// runs, so words defined by DEF, VAR and CONST, in the script or since it
+// was prepared, are seen just as when the text is run as it is. Nothing in
+// it changes once made, so one program may be run by many interpreters at
+// once.
+public final class ScratchProgram {
+    // Most programs kept by cached(), least recently used first to go.
+    private static final int CACHE_SIZE = Integer.getInteger("scratch.program.cache", 256);
+    // Longer scripts are lexed as they run instead of kept.
+    private static final int MAX_CACHED_LENGTH = 1 << 16;
+    private static final Map<String, ScratchProgram> cache =
+            new LinkedHashMap<String, ScratchProgram>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScratchProgram> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    final String text;
+    final int[] starts;
+    final int[] lengths;
+    // IDs in the table of the interpreter that made the program, or -1 for
+    // names it had not interned yet.
+    final int[] symbols;
+    // That table, held weakly since the cache is shared by every
+    // interpreter in the process and must not keep theirs alive. Once it
+    // is gone, only IDs in the table it shared with the others, that of
+    // the built-in words, are used.
+    private final WeakReference<ScratchSymbols> owner;
+    private final ScratchSymbols shared;
+    final double[] numbers;
+    final boolean[] is_number;
+
+    ScratchProgram(String text, ScratchSymbols owner) {
+        ScratchLexer lexer = new ScratchLexer(text, owner);
+        ScratchNumber number = new ScratchNumber();
+        int[] starts = new int[16];
+        int[] lengths = new int[16];
+        int[] symbols = new int[16];
+        double[] numbers = new double[16];
+        boolean[] is_number = new boolean[16];
+        int count = 0;
+        while (lexer.nextToken()) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                symbols = Arrays.copyOf(symbols, count * 2);
+                numbers = Arrays.copyOf(numbers, count * 2);
+                is_number = Arrays.copyOf(is_number, count * 2);
+            }
+            starts[count] = lexer.start;
+            lengths[count] = lexer.length;
+            symbols[count] = lexer.symbol;
+            if (lexer.scanNumber(number)) {
+                numbers[count] = number.value;
+                is_number[count] = true;
+            }
+            count++;
+        }
+        this.text = text;
+        this.owner = new WeakReference<>(owner);
+        this.shared = owner.shared();
+        this.starts = Arrays.copyOf(starts, count);
+        this.lengths = Arrays.copyOf(lengths, count);
+        this.symbols = Arrays.copyOf(symbols, count);
+        this.numbers = Arrays.copyOf(numbers, count);
+        this.is_number = Arrays.copyOf(is_number, count);
+    }
+
+    public String text() {
+        return text;
+    }
+
+    // The table the IDs in SYMBOLS are from, or the one it shared.
+    ScratchSymbols owner() {
+        ScratchSymbols table = owner.get();
+        return table != null ? table : shared;
+    }
+
+    // The program for TEXT, made with the symbols of the interpreter that
+    // first asks for it, or null if TEXT is not to be cached.
+    static ScratchProgram cached(String text, ScratchSymbols symbols) {
+        if (CACHE_SIZE <= 0 || text.length() > MAX_CACHED_LENGTH) {
+            return null;
+        }
+        ScratchProgram program;
+        synchronized (cache) {
+            program = cache.get(text);
+        }
+        if (program != null) {
+            return program;
+        }
+        // Lexed outside the lock; if another thread got there first, either
+        // program will do.
+        program = new ScratchProgram(text, symbols);
+        synchronized (cache) {
+            ScratchProgram other = cache.putIfAbsent(text, program);
+            return other != null ? other : program;
+        }
+    }
+}
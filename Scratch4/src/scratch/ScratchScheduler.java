@@ -0,0 +1,96 @@
+package scratch;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs many scripts at once, each in a Scratch4 of its own, on a few
+// carrier threads. A task runs stackless until it has used up its quantum
+// of calls and backward branches, or until it runs YIELD, and then goes to
+// the back of the queue; while it waits there it holds no thread, only its
+// interpreter and stacks.
+public class ScratchScheduler {
+    private final ExecutorService carriers;
+    private final long quantum;
+    private final AtomicInteger live = new AtomicInteger(); // Tasks not done.
+    private volatile boolean closing;
+
+    public ScratchScheduler(int threads, long quantum) {
+        carriers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "scratch-carrier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.quantum = quantum;
+    }
+
+    public ScratchScheduler(int threads) {
+        this(threads, Long.getLong("scratch.quantum", 10000));
+    }
+
+    public Task submit(String text) {
+        return submit(new Scratch4(), text);
+    }
+
+    // Run TEXT in TERP, which no other thread may use until it is done.
+    public Task submit(Scratch4 terp, String text) {
+        Task task = new Task(terp);
+        terp.stackless = true;
+        terp.suspendable = true;
+        terp.start(text);
+        live.incrementAndGet();
+        carriers.execute(task);
+        return task;
+    }
+
+    // Stop taking tasks, and let the carriers go once those submitted are
+    // done.
+    public void shutdown() {
+        closing = true;
+        if (live.get() == 0) {
+            carriers.shutdown();
+        }
+    }
+
+    private void finished() {
+        if (live.decrementAndGet() == 0 && closing) {
+            carriers.shutdown();
+        }
+    }
+
+    public class Task implements Runnable {
+        public final Scratch4 terp;
+        // Completes when the text has run, or with the error that ended it.
+        public final CompletableFuture<Scratch4> done = new CompletableFuture<>();
+        private int slices;
+
+        private Task(Scratch4 terp) {
+            this.terp = terp;
+        }
+
+        // Times the task has been on a carrier.
+        public int slices() {
+            return slices;
+        }
+
+        @Override
+        public void run() {
+            slices++;
+            terp.budget = quantum;
+            try {
+                if (!terp.proceed()) {
+                    carriers.execute(this);
+                    return;
+                }
+                done.complete(terp);
+            } catch (Throwable e) {
+                // Any error, the engine's own included, ends the task, so
+                // that whoever waits on it and shutdown() are not left
+                // hanging.
+                done.completeExceptionally(e);
+            }
+            finished();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package scratch;
+
+import java.util.Arrays;
+
+// Interned word names. Each name, folded to upper case, gets a dense ID
+// the first time it is defined; lookups fold case as they go, so a word is
+// found straight from the source text. A table may sit over a BASE that
+// it shares with others: the names in the base keep their IDs, and the
+// table's own come after them, in arrays made on the first one.
+class ScratchSymbols {
+    private final ScratchSymbols base;
+    private final int first; // ID of the first name of this table's own.
+    private String[] keys;
+    private int[] ids;
+    private String[] names;
+    private int size; // Of this table's own names.
+
+    public ScratchSymbols() {
+        this(null);
+    }
+
+    public ScratchSymbols(ScratchSymbols base) {
+        this.base = base;
+        first = base == null ? 0 : base.size();
+    }
+
+    public static char fold(char ch) {
+        if (ch >= 'a' && ch <= 'z') {
+            return (char)(ch - ('a' - 'A'));
+        }
+        if (ch < 128) {
+            return ch;
+        }
+        return Character.toUpperCase(ch);
+    }
+
+    private static int hash(String text, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + fold(text.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String key, String text, int start, int length) {
+        if (key.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) != fold(text.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return first + size;
+    }
+
+    public String name(int id) {
+        return id < first ? base.name(id) : names[id - first];
+    }
+
+    // Whether ID names the same word here as in OTHER.
+    public boolean agrees(ScratchSymbols other, int id) {
+        return other == this || base != null && (other == base || other.base == base) && id < first;
+    }
+
+    // The table this one shares with others, or itself if there is none.
+    public ScratchSymbols shared() {
+        return base != null ? base : this;
+    }
+
+    public int find(String word) {
+        return find(word, 0, word.length());
+    }
+
+    // ID of the name in TEXT, or -1 if it has never been interned.
+    public int find(String text, int start, int length) {
+        int h = hash(text, start, length);
+        if (base != null) {
+            int id = base.find(h, text, start, length);
+            if (id >= 0) {
+                return id;
+            }
+        }
+        return find(h, text, start, length);
+    }
+
+    // Same as find() in this table's own names, with the hash H of TEXT.
+    private int find(int h, String text, int start, int length) {
+        if (keys == null) {
+            return -1;
+        }
+        int mask = keys.length - 1;
+        for (int i = h & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (matches(keys[i], text, start, length)) {
+                return ids[i];
+            }
+        }
+        return -1;
+    }
+
+    public int intern(String word) {
+        int id = find(word);
+        if (id >= 0) {
+            return id;
+        }
+        if (keys == null) {
+            keys = new String[16];
+            ids = new int[16];
+            names = new String[8];
+        }
+        if ((size + 1) * 2 > keys.length) {
+            String[] old_keys = keys;
+            int[] old_ids = ids;
+            keys = new String[old_keys.length * 2];
+            ids = new int[old_keys.length * 2];
+            for (int i = 0; i < old_keys.length; i++) {
+                if (old_keys[i] != null) {
+                    insert(old_keys[i], old_ids[i]);
+                }
+            }
+        }
+        char[] key = new char[word.length()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = fold(word.charAt(i));
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        names[size] = new String(key);
+        insert(names[size], first + size);
+        return first + size++;
+    }
+
+    private void insert(String key, int id) {
+        int mask = keys.length - 1;
+        int i = hash(key, 0, key.length()) & mask;
+        while (keys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        ids[i] = id;
+    }
+}
@@ -0,0 +1,69 @@
+package scratch.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// TIMES, WHILE and LOOP, 100 iterations each, in user words. The times
+// benchmark has its count as a literal; timesDynamic takes it from the
+// stack, so TIMES runs its list as a quotation. Only Scratch4 has lists.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlBenchmark {
+    @Param({"4"})
+    public String stage;
+
+    private Stage terp;
+    private Object times;
+    private Object times_dynamic;
+    private Object while_word;
+    private Object loop;
+    private Object count = 100.0; // Boxed once, not by every call.
+
+    @Setup
+    public void setup() throws Throwable {
+        terp = new Stage(stage);
+        terp.run(": tm 0 [ 1 + ] 100 times drop ;");
+        terp.run(": td 0 [ 1 + ] rot times drop ;");
+        terp.run(": wh 0 [ dup 100 >= ] [ 1 + ] while drop ;");
+        terp.run(": lp 0 [ 1 + dup 100 >= ?break ] loop drop ;");
+        times = terp.compile("TM");
+        times_dynamic = terp.compile("TD");
+        while_word = terp.compile("WH");
+        loop = terp.compile("LP");
+    }
+
+    @Benchmark
+    public void times() throws Throwable {
+        terp.interpret(times);
+    }
+
+    @Benchmark
+    public void timesDynamic() throws Throwable {
+        terp.interpret(count);
+        terp.interpret(times_dynamic);
+    }
+
+    @Benchmark
+    public void whileLoop() throws Throwable {
+        terp.interpret(while_word);
+    }
+
+    @Benchmark
+    public void loop() throws Throwable {
+        terp.interpret(loop);
+    }
+}
@@ -0,0 +1,64 @@
+package scratch.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Words run one at a time through interpret(): primitives, and a call to a
+// user word (CodeWordRef). Each leaves the stack as it found it. Scratch1
+// and Scratch2 have no interpret(), nor user words.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"3", "4"})
+    public String stage;
+
+    private Stage terp;
+    private Object dup;
+    private Object add;
+    private Object drop;
+    private Object word;
+    private Object two = 2.0; // Boxed once, not by every call.
+
+    @Setup
+    public void setup() throws Throwable {
+        terp = new Stage(stage);
+        terp.run(": w dup dup + drop ; 1");
+        dup = terp.compile("DUP");
+        add = terp.compile("+");
+        drop = terp.compile("DROP");
+        word = terp.compile("W");
+    }
+
+    @Benchmark
+    public void primitive() throws Throwable {
+        terp.interpret(dup);
+        terp.interpret(dup);
+        terp.interpret(add);
+        terp.interpret(drop);
+    }
+
+    @Benchmark
+    public void literal() throws Throwable {
+        terp.interpret(two);
+        terp.interpret(drop);
+    }
+
+    @Benchmark
+    public void userWord() throws Throwable {
+        terp.interpret(word);
+    }
+}
@@ -0,0 +1,49 @@
+package scratch.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ScratchLexer.nextWord over a line of 100 words.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+    @Param({"1", "2", "3", "4"})
+    public String stage;
+
+    private Stage terp;
+    private String text;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        terp = new Stage(stage);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            builder.append("1 2 + dup *  swap\tOVER rot 3.5 drop\n");
+        }
+        text = builder.toString();
+    }
+
+    @Benchmark
+    public int nextWord() throws Throwable {
+        Object lexer = terp.lexer(text);
+        int words = 0;
+        while (terp.nextWord(lexer) != null) {
+            words++;
+        }
+        return words;
+    }
+}
@@ -0,0 +1,56 @@
+package scratch.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Dictionary lookup through compile(), for words and numbers. Scratch1 and
+// Scratch2 look words up inside run() and have no compile().
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    private static final String[] WORDS = {
+        "DUP", "drop", "Swap", "+", "*", "over", "ROT", ".", "pstack", "sqrt",
+    };
+    private static final String[] NUMBERS = {
+        "1", "42", "3.5", "-7", "1e3", "0.125", "100", "2", "65536", "9.75",
+    };
+
+    @Param({"3", "4"})
+    public String stage;
+
+    private Stage terp;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        terp = new Stage(stage);
+    }
+
+    @Benchmark
+    public void word(Blackhole blackhole) throws Throwable {
+        for (String word : WORDS) {
+            blackhole.consume(terp.compile(word));
+        }
+    }
+
+    @Benchmark
+    public void number(Blackhole blackhole) throws Throwable {
+        for (String word : NUMBERS) {
+            blackhole.consume(terp.compile(word));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package scratch.bench;
+
+import java.io.File;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the GC profiler, so that allocation rates come
+// out next to throughput. Build the stages and this module, then run from
+// the repository root, with the usual JMH options if any:
+//
+//     (cd Scratch1 && ant jar) ... (cd Scratch4 && ant jar)
+//     mvn -f ScratchBench/pom.xml package
+//     java -jar ScratchBench/target/benchmarks.jar [Control|Dispatch|...]
+//
+// -Dscratch.root=DIR runs from elsewhere.
+public class Main {
+    public static void main(String[] args) throws Exception {
+        String root = new File(System.getProperty("scratch.root", ".")).getAbsolutePath();
+        new Runner(new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .jvmArgsAppend("-Dscratch.root=" + root)
+            .build()).run();
+    }
+}
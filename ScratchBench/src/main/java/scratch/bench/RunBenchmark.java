@@ -0,0 +1,39 @@
+package scratch.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Lexing, lookup and dispatch together: run() on a line of arithmetic that
+// every stage understands.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunBenchmark {
+    @Param({"1", "2", "3", "4"})
+    public String stage;
+
+    private Stage terp;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        terp = new Stage(stage);
+    }
+
+    @Benchmark
+    public void run() throws Throwable {
+        terp.run("1 2 + 3 * dup * 4 swap over - drop sqrt drop");
+    }
+}
@@ -0,0 +1,106 @@
+package scratch.bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+// One of the interpreters, loaded from ScratchN/dist/ScratchN.jar with a
+// class loader of its own, since every stage has its classes in package
+// scratch under the same names. Methods a stage does not have are null;
+// the benchmarks only list the stages that have what they measure.
+final class Stage {
+    private final Object terp;
+    private final MethodHandle create;
+    private final MethodHandle run;
+    private final MethodHandle new_lexer;
+    private final MethodHandle next_word;
+    private final MethodHandle compile;
+    private final MethodHandle interpret;
+
+    Stage(String number) throws ReflectiveOperationException {
+        String root = System.getProperty("scratch.root", ".");
+        File jar = new File(root, "Scratch" + number + "/dist/Scratch" + number + ".jar");
+        if (!jar.isFile()) {
+            throw new IllegalStateException("No " + jar + ": run ant jar in Scratch" + number + " first");
+        }
+        ClassLoader loader;
+        try {
+            loader = new URLClassLoader(new URL[] {jar.toURI().toURL()}, Stage.class.getClassLoader());
+        } catch (java.net.MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+        Class<?> terp_class = loader.loadClass("scratch.Scratch" + number);
+        terp = terp_class.getConstructor().newInstance();
+        create = MethodHandles.lookup().unreflectConstructor(terp_class.getConstructor())
+            .asType(MethodType.methodType(Object.class));
+        run = handle(terp_class, "run", String.class);
+        compile = handle(terp_class, "compile", String.class);
+        interpret = handle(terp_class, "interpret", Object.class);
+
+        // Scratch4 interns words as it reads them, with the symbols of the
+        // interpreter that owns the lexer.
+        Class<?> lexer_class = loader.loadClass("scratch.ScratchLexer");
+        Constructor<?> lexer_new;
+        try {
+            lexer_new = lexer_class.getDeclaredConstructor(String.class, loader.loadClass("scratch.ScratchSymbols"));
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            lexer_new = lexer_class.getDeclaredConstructor(String.class);
+        }
+        lexer_new.setAccessible(true);
+        MethodHandle lexer = MethodHandles.lookup().unreflectConstructor(lexer_new);
+        if (lexer_new.getParameterCount() == 2) {
+            Field symbols = terp_class.getDeclaredField("symbols");
+            symbols.setAccessible(true);
+            lexer = MethodHandles.insertArguments(lexer, 1, symbols.get(terp));
+        }
+        new_lexer = lexer.asType(MethodType.methodType(Object.class, String.class));
+        next_word = handle(lexer_class, "nextWord");
+    }
+
+    private static MethodHandle handle(Class<?> cls, String name, Class<?>... parameters)
+            throws IllegalAccessException {
+        Method method;
+        try {
+            method = cls.getDeclaredMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method).asType(MethodType.genericMethodType(parameters.length + 1));
+    }
+
+    // A new interpreter, apart from the one the other methods use.
+    Object create() throws Throwable {
+        return (Object)create.invokeExact();
+    }
+
+    void run(String text) throws Throwable {
+        run(terp, text);
+    }
+
+    void run(Object terp, String text) throws Throwable {
+        Object unused = run.invokeExact(terp, (Object)text);
+    }
+
+    Object lexer(String text) throws Throwable {
+        return (Object)new_lexer.invokeExact(text);
+    }
+
+    String nextWord(Object lexer) throws Throwable {
+        return (String)(Object)next_word.invokeExact(lexer);
+    }
+
+    Object compile(String word) throws Throwable {
+        return (Object)compile.invokeExact(terp, (Object)word);
+    }
+
+    void interpret(Object word) throws Throwable {
+        Object unused = interpret.invokeExact(terp, word);
+    }
+}
@@ -0,0 +1,49 @@
+package scratch.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What a new interpreter costs, on its own and with a short script run in
+// it, as when every request or task gets one of its own. The GC profiler's
+// gc.alloc.rate.norm is the bytes each takes.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+    private static final String SCRIPT = "1 2 + 3 * dup * drop";
+
+    @Param({"1", "2", "3", "4"})
+    public String stage;
+
+    private Stage terp;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        terp = new Stage(stage);
+    }
+
+    @Benchmark
+    public Object create() throws Throwable {
+        return terp.create();
+    }
+
+    @Benchmark
+    public Object createAndRun() throws Throwable {
+        Object fresh = terp.create();
+        terp.run(fresh, SCRIPT);
+        return fresh;
+    }
+}